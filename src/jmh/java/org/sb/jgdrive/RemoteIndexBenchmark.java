@@ -0,0 +1,179 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * Run with <code>mvn -P bench test</code>, pick sizes with <code>-Djmh.args="-p nodes=10000 -rf json -rff out.json"</code>.
+ * Lookups are timed per batch of {@link #LOOKUPS}, mutations per batch of {@link #CHANGES} as a single shot
+ * so that every shot starts from an index of the same size.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx6g"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RemoteIndexBenchmark
+{
+    static final int LOOKUPS = 1000;
+    static final int CHANGES = 1000;
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    int nodes;
+
+    SyntheticIndex synth;
+    Path snapshot;
+    Set<String> idSet;
+    List<Path> paths;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        synth = SyntheticIndex.generate(nodes, 42);
+        snapshot = Files.createTempFile("jgdrive-bench", ".bin");
+        IndexFile.write(synth.index, snapshot, false);
+        idSet = Stream.generate(synth::randomFile).limit(LOOKUPS).collect(Collectors.toSet());
+        paths = synth.index.getLocalPath(idSet).map(e -> e.getValue()).collect(Collectors.toList());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public RemoteIndex readSnapshot() throws IOException
+    {
+        return IndexFile.read(snapshot);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public void writeSnapshot() throws IOException
+    {
+        IndexFile.write(synth.index, snapshot, false);
+    }
+
+    @Benchmark
+    public Map<Path, String> getFileId()
+    {
+        return synth.index.getFileId(paths.stream());
+    }
+
+    @Benchmark
+    public List<Path> getLocalPath()
+    {
+        return synth.index.getLocalPath(idSet).map(e -> e.getValue()).collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public int exists()
+    {
+        int found = 0;
+        for(Path p : paths)
+            if(synth.index.exists(p)) found++;
+        return found;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long localPaths()
+    {
+        return synth.index.localPaths().count();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long walk()
+    {
+        return synth.index.walk(false).count();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public Map<File, Path> add(Changes changes)
+    {
+        return synth.index.add(changes.batch.stream());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public List<Path> remove(Removal removal)
+    {
+        return synth.index.remove(removal.ids.stream());
+    }
+
+    /**
+     * A batch of new and moved files for every add shot, the new ones are dropped after it to keep the size.
+     */
+    @State(Scope.Thread)
+    public static class Changes
+    {
+        List<File> batch;
+
+        @Setup(Level.Iteration)
+        public void prepare(RemoteIndexBenchmark bench)
+        {
+            batch = bench.synth.changes(CHANGES, 0.2);
+        }
+
+        @TearDown(Level.Iteration)
+        public void drop(RemoteIndexBenchmark bench)
+        {
+            bench.synth.index.remove(batch.stream().map(f -> f.getId()).filter(SyntheticIndex::isNew));
+        }
+    }
+
+    /**
+     * New files added to the index before every remove shot.
+     */
+    @State(Scope.Thread)
+    public static class Removal
+    {
+        List<String> ids;
+
+        @Setup(Level.Iteration)
+        public void add(RemoteIndexBenchmark bench)
+        {
+            List<File> added = bench.synth.changes(CHANGES, 0);
+            bench.synth.index.add(added.stream());
+            ids = added.stream().map(f -> f.getId()).collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.sb.jgdrive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+/**
+ * A generated {@link RemoteIndex} shaped like a real drive: about 1 in 12 entries is a folder,
+ * folders are picked as parents in proportion to the children they already have (so a few folders
+ * hold thousands of entries while most hold a handful) and nesting stops at {@link #MAX_DEPTH}.
+ */
+final class SyntheticIndex
+{
+    static final String ROOT_ID = "0AHxRoOtFoLdErUk9PVA";
+    static final int MAX_DEPTH = 12;
+    private static final char[] ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final String[] DIR_NAMES = {"Photos", "Documents", "Projects", "Backup", "src", "Invoices", "Music", "tmp"};
+    private static final String[] EXTS = {".jpg", ".pdf", ".txt", ".docx", ".java", ".mp3", ".png", ".xlsx"};
+    private static final int BATCH = 10000;
+    private static final char NEW = '2';
+
+    final RemoteIndex index;
+    final String[] dirIds;
+    final String[] fileIds;
+    private final Random random;
+
+    private SyntheticIndex(RemoteIndex index, String[] dirIds, String[] fileIds, Random random)
+    {
+        this.index = index;
+        this.dirIds = dirIds;
+        this.fileIds = fileIds;
+        this.random = random;
+    }
+
+    static SyntheticIndex generate(int nodes, long seed)
+    {
+        Random r = new Random(seed);
+        RemoteIndex ri = new RemoteIndex(1, ROOT_ID);
+        ArrayList<String> dirs = new ArrayList<>(), files = new ArrayList<>();
+        dirs.add(ROOT_ID);
+        int[] depth = new int[16];
+        //every folder appears once plus once per child, picking from it is preferential attachment
+        int[] slots = new int[1024];
+        int slotCount = 1;
+        List<File> batch = new ArrayList<>(BATCH);
+        for(int i = 1; i < nodes; i++)
+        {
+            int par = slots[r.nextInt(slotCount)];
+            if(depth[par] >= MAX_DEPTH) par = slots[r.nextInt(slotCount)];
+            if(depth[par] >= MAX_DEPTH) par = 0;
+            boolean dir = r.nextInt(12) == 0;
+            String id = id(r, '1');
+            batch.add(file(id, title(r, dir), dirs.get(par), dir));
+            if(slotCount + 2 > slots.length) slots = Arrays.copyOf(slots, slots.length << 1);
+            slots[slotCount++] = par;
+            if(dir)
+            {
+                if(dirs.size() == depth.length) depth = Arrays.copyOf(depth, depth.length << 1);
+                depth[dirs.size()] = depth[par] + 1;
+                slots[slotCount++] = dirs.size();
+                dirs.add(id);
+            }
+            else
+                files.add(id);
+            if(batch.size() == BATCH)
+            {
+                ri.load(batch.stream());
+                batch.clear();
+            }
+        }
+        ri.load(batch.stream());
+        return new SyntheticIndex(ri, dirs.toArray(new String[0]), files.toArray(new String[0]), r);
+    }
+
+    String randomDir()
+    {
+        return dirIds[random.nextInt(dirIds.length)];
+    }
+
+    String randomFile()
+    {
+        return fileIds[random.nextInt(fileIds.length)];
+    }
+
+    /**
+     * @return a batch of changes as returned by the changes feed, new files and the given share of files moved
+     *          to other folders
+     */
+    List<File> changes(int count, double moved)
+    {
+        ArrayList<File> batch = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+            batch.add(random.nextDouble() < moved ? file(randomFile(), title(random, false), randomDir(), false)
+                                                  : file(id(random, NEW), title(random, false), randomDir(), false));
+        return batch;
+    }
+
+    static File file(String id, String title, String parentId, boolean dir)
+    {
+        return new File().setId(id).setTitle(title)
+                    .setMimeType(dir ? Driver.MIME_TYPE_DIR : "application/octet-stream")
+                    .setParents(Collections.singletonList(new ParentReference().setId(parentId)));
+    }
+
+    /**
+     * @return true for the ids of files created by {@link #changes(int, double)}
+     */
+    static boolean isNew(String id)
+    {
+        return id.charAt(0) == NEW;
+    }
+
+    private static String id(Random r, char first)
+    {
+        char[] id = new char[28];
+        id[0] = first;
+        for(int i = 1; i < id.length; i++) id[i] = ID_CHARS[r.nextInt(ID_CHARS.length)];
+        return new String(id);
+    }
+
+    private static String title(Random r, boolean dir)
+    {
+        return dir ? DIR_NAMES[r.nextInt(DIR_NAMES.length)] + " " + r.nextInt(2000)
+                   : "IMG_" + r.nextInt(100000) + EXTS[r.nextInt(EXTS.length)];
+    }
+}
@@ -0,0 +1,173 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+/**
+ * Finding the local changes with a {@link Files#find} walk looked up in the index and a walk of the index stat'ing
+ * every entry, against the single pass of {@link TreeDiff}. The tree is generated with empty files, a folder of every 
+ * {@link #FILES_PER_DIR} files, under -Djgdrive.bench.dir or the temp dir, it is indexed before one of every 
+ * {@link #CHANGE_EVERY} files is deleted and as many are added.
+ * Put the tree on the file system of interest (e.g. an nfs mount) to see the effect of latency,
+ * on a local disk most of it is served from the page cache.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TreeDiffBenchmark
+{
+    static final int FILES_PER_DIR = 40;
+    static final int SUBDIRS = 6;
+    static final int CHANGE_EVERY = 100;
+
+    @Param({"10000", "100000"})
+    int files;
+
+    @Param({"1", "4", "16"})
+    int threads;
+
+    Path root;
+    RemoteIndex idx;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        String dir = System.getProperty("jgdrive.bench.dir");
+        root = dir != null ? Files.createTempDirectory(Files.createDirectories(Paths.get(dir)), "scan")
+                           : Files.createTempDirectory("jgdrive-scan");
+        Files.createDirectories(root.resolve(".jgdrive"));
+        generate(root, files, new Random(42));
+        idx = index(root);
+        change(root);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Breadth first, every folder gets its files and up to {@link #SUBDIRS} subfolders until the count is reached.
+     */
+    static void generate(Path root, int count, Random r) throws IOException
+    {
+        ArrayDeque<Path> dirs = new ArrayDeque<>();
+        dirs.add(root);
+        for(int made = 0; made < count;)
+        {
+            Path dir = dirs.removeFirst();
+            for(int i = 0; i < FILES_PER_DIR && made < count; i++, made++)
+                Files.createFile(dir.resolve("f" + made + (r.nextBoolean() ? ".txt" : ".jpg")));
+            for(int i = 1 + r.nextInt(SUBDIRS); i > 0; i--)
+                dirs.addLast(Files.createDirectory(dir.resolve("d" + made + "-" + i)));
+        }
+    }
+
+    /**
+     * @return the index of the tree, the relative paths standing for the ids
+     */
+    static RemoteIndex index(Path root) throws IOException
+    {
+        RemoteIndex idx = new RemoteIndex(0, "root");
+        Path idxDir = root.resolve(".jgdrive");
+        try(Stream<Path> paths = Files.walk(root))
+        {
+            idx.load(paths.filter(p -> !p.equals(root) && !p.startsWith(idxDir)).map(p -> 
+                {
+                    Path rel = root.relativize(p);
+                    return new File().setId(rel.toString()).setTitle(rel.getFileName().toString())
+                                .setMimeType(Files.isDirectory(p) ? Driver.MIME_TYPE_DIR : "text/plain")
+                                .setParents(Collections.singletonList(new ParentReference()
+                                        .setId(rel.getParent() == null ? "root" : rel.getParent().toString())));
+                }));
+        }
+        return idx;
+    }
+
+    static void change(Path root) throws IOException
+    {
+        Path idxDir = root.resolve(".jgdrive");
+        List<Path> files;
+        try(Stream<Path> found = Files.find(root, Integer.MAX_VALUE, (p, a) -> !p.startsWith(idxDir) && a.isRegularFile()))
+        {
+            files = found.sorted().collect(Collectors.toList());
+        }
+        for(int i = 0; i < files.size(); i += CHANGE_EVERY)
+        {
+            Files.delete(files.get(i));
+            Files.createFile(files.get(i).resolveSibling("n" + i + ".txt"));
+        }
+    }
+
+    @Benchmark
+    public long twoPasses() throws IOException
+    {
+        //a single thread whatever the param, as a baseline
+        Path idxDir = root.resolve(".jgdrive");
+        try(Stream<Path> found = Files.find(root, Integer.MAX_VALUE,
+                                            (p, a) -> !p.startsWith(idxDir) && a.isRegularFile()))
+        {
+            return found.filter(p -> !idx.exists(root.relativize(p))).count()
+                        + idx.walk(true).filter(c -> Files.notExists(root.resolve(c.relativePath().toString()),
+                                                                        LinkOption.NOFOLLOW_LINKS)).count();
+        }
+    }
+
+    @Benchmark
+    public long treeDiff()
+    {
+        Path idxDir = Paths.get(".jgdrive");
+        TreeDiff diff = new TreeDiff(root, idx, threads, (rel, a) -> rel.equals(idxDir), 
+                                        (rel, a, indexed, synced) -> !indexed).run();
+        return diff.changed().size() + diff.deleted().size();
+    }
+}
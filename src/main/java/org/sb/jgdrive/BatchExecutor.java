@@ -0,0 +1,154 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.api.client.googleapis.batch.BatchCallback;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+
+/**
+ * Runs requests in batches of at most {@link #MAX_BATCH} calls, several batches at a time on a {@link TransferPool}.
+ * Every call of a batch counts against the {@link RateLimiter}, calls failing with a rate limit or server error 
+ * are retried on their own in a later batch, every call ends up with its own result.
+ */
+final class BatchExecutor
+{
+    private static final Logger log = Logger.getLogger(BatchExecutor.class.getPackage().getName());
+    static final int MAX_BATCH = 100;
+
+    private final Drive drive;
+    private final TransferPool pool;
+    private final RateLimiter limiter;
+    private final int batchSize;
+    private final int retries;
+
+    BatchExecutor(Drive drive, TransferPool pool, RateLimiter limiter, int batchSize, int retries)
+    {
+        this.drive = drive;
+        this.pool = pool;
+        this.limiter = limiter;
+        this.batchSize = Math.max(1, Math.min(MAX_BATCH, batchSize));
+        this.retries = retries;
+    }
+
+    /**
+     * @return the result of the request made for every key, failed calls hold an {@link HttpResponseException}
+     * @throws IOException if a whole batch could not be sent
+     */
+    <K, T> Map<K, Try<T, IOException>> execute(Stream<K> keys,
+                                    Try.FunctionEx<? super K, ? extends DriveRequest<T>, IOException> request) throws IOException
+    {
+        Map<K, Try<T, IOException>> results = new ConcurrentHashMap<>();
+        pool.run(chunks(keys), chunk ->
+            {
+                Map<K, DriveRequest<T>> calls = new LinkedHashMap<>();
+                for(K key : chunk) calls.put(key, request.apply(key));
+                run(calls, results);
+            });
+        return results;
+    }
+
+    private <K> Stream<List<K>> chunks(Stream<K> keys)
+    {
+        Iterator<K> it = keys.iterator();
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<List<K>>(Long.MAX_VALUE, Spliterator.ORDERED)
+        {
+            @Override
+            public boolean tryAdvance(Consumer<? super List<K>> action)
+            {
+                if(!it.hasNext()) return false;
+                List<K> chunk = new ArrayList<>(batchSize);
+                while(chunk.size() < batchSize && it.hasNext()) chunk.add(it.next());
+                action.accept(chunk);
+                return true;
+            }
+        }, false);
+    }
+
+    private <K, T> void run(Map<K, DriveRequest<T>> calls, Map<K, Try<T, IOException>> results) throws IOException
+    {
+        for(int attempt = 0; !calls.isEmpty(); attempt++)
+        {
+            final boolean last = attempt >= retries;
+            Map<K, DriveRequest<T>> retry = new LinkedHashMap<>();
+            long[] retryAfter = {0};
+            boolean[] throttled = {false};
+            BatchRequest batch = drive.batch();
+            for(Entry<K, DriveRequest<T>> call : calls.entrySet())
+                batch.queue(exempt(call.getValue().buildHttpRequest()), call.getValue().getResponseClass(), 
+                    GoogleJsonErrorContainer.class, new BatchCallback<T, GoogleJsonErrorContainer>()
+                    {
+                        @Override
+                        public void onSuccess(T t, HttpHeaders responseHeaders)
+                        {
+                            limiter.succeeded();
+                            results.put(call.getKey(), Try.success(t));
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonErrorContainer ec, HttpHeaders responseHeaders) throws IOException
+                        {
+                            GoogleJsonError e = ec.getError() != null ? ec.getError() : new GoogleJsonError();
+                            if(!last && isRetryable(e))
+                            {
+                                retry.put(call.getKey(), call.getValue());
+                                retryAfter[0] = Math.max(retryAfter[0], RateLimiter.retryAfter(responseHeaders));
+                                throttled[0] |= e.getCode() < 500;
+                            }
+                            else
+                                results.put(call.getKey(), Try.failure(
+                                        new HttpResponseException.Builder(e.getCode(), e.getMessage(), responseHeaders)
+                                                .setContent(e.toPrettyString()).build()));
+                        }
+                    });
+            limiter.acquire(calls.size());
+            try
+            {
+                batch.execute();
+            }
+            catch(IOException e)
+            {
+                if(last) throw e;
+                log.warning("Batch of " + calls.size() + " calls failed, retrying: " + e);
+                retry.putAll(calls);
+            }
+            if(!retry.isEmpty())
+            {
+                long delay = limiter.backoff(retryAfter[0], throttled[0]);
+                int count = retry.size();
+                log.fine(() -> "Retrying " + count + " calls of a batch in " + delay + " ms");
+            }
+            calls = retry;
+        }
+    }
+
+    private HttpRequest exempt(HttpRequest request)
+    {
+        limiter.exempt(request);
+        return request;
+    }
+
+    static boolean isRetryable(GoogleJsonError e)
+    {
+        return e.getCode() >= 500 || RateLimiter.isRateLimited(e);
+    }
+}
@@ -1,78 +1,227 @@
 package org.sb.jgdrive;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
 
+/**
+ * Lists the drive and downloads its files, while the next pages of the listing are read ahead.
+ * The progress is checkpointed as the pages complete: the token of the next page to list in .jgdrive/clone.properties,
+ * the ids of the files downloaded since in .jgdrive/clone_done.txt, and the index built so far.
+ * A clone that broke off is continued by 'clone --resume', the other commands refuse to run until it completes.
+ * With 'clone --seed' the files already in the home directory are kept when their md5 matches the remote file at
+ * the same path, only missing or different content is downloaded.
+ */
 public class Clone
-{   
+{
     private static final Logger log = Logger.getLogger(Clone.class.getPackage().getName());
+    static final String STATE_FILE = "clone.properties";
     private final Driver driver;
-    
-    public Clone(Path home, boolean simulation) throws IOException, IllegalStateException
+    private final boolean resume, simulation;
+    private final Path statePath, donePath;
+
+    private final Properties state = new Properties();
+    private final Deque<Page> pages = new ArrayDeque<>();
+    private final Map<File, Page> pageOf = Collections.synchronizedMap(new IdentityHashMap<>());
+    private BufferedWriter doneLog;
+
+    private static class Page
+    {
+        final String nextToken;
+        final AtomicInteger pending;
+
+        Page(String nextToken, int pending)
+        {
+            this.nextToken = nextToken;
+            this.pending = new AtomicInteger(pending);
+        }
+    }
+
+    public Clone(Path home, boolean resume, boolean simulation) throws IOException, IllegalStateException
     {
         CredHelper credHelper = CredHelper.makeCredHelper(home);
         Try<Credential, IOException> cred = credHelper.get().map(ch -> Try.success(ch, IOException.class))
                         .orElseGet(Try.wrap(() -> credHelper.authorize(), IOException.class));
-        
-        driver = new Driver(home, new Drive.Builder(credHelper.httpTransport, 
-                                    credHelper.jfac, cred.orElseThrow()).setApplicationName(Driver.appName).build(), simulation);
+
+        driver = new Driver(home, credHelper.httpTransport, cred.orElseThrow(), resume, simulation);
+        this.resume = resume;
+        this.simulation = simulation;
+        statePath = driver.stateFile(STATE_FILE);
+        donePath = driver.stateFile("clone_done.txt");
     }
-    
+
     public void exec(final List<String> opts) throws IOException
     {
-        final boolean noDown = !opts.contains("no-download");
+        final boolean download = !opts.contains("no-download");
+        final boolean seed = opts.contains("seed");
+
+        Set<String> done = new HashSet<>();
+        if(resume)
+        {
+            if(Files.notExists(statePath))
+                throw new IllegalStateException("There is no clone to resume at " + driver.getHome());
+            try(InputStream is = Files.newInputStream(statePath))
+            {
+                state.load(is);
+            }
+            if(Files.exists(donePath))
+                try(Stream<String> ids = Files.lines(donePath, StandardCharsets.UTF_8))
+                {
+                    ids.filter(id -> !id.isEmpty()).forEach(done::add);
+                }
+            log.info("Resuming clone, " + done.size() + " files were downloaded already");
+        }
+        else if(!simulation)
+        {
+            Files.deleteIfExists(statePath);
+            Files.deleteIfExists(donePath);
+        }
+        if(!simulation)
+            doneLog = Files.newBufferedWriter(donePath, StandardCharsets.UTF_8,
+                                                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
 
-        Path home = driver.getHome();
-        
         RemoteIndex ri = driver.getRemoteIndex();
-        ri.add(driver.getAllDirs());
-        
-        driver.getAllFiles().forEach(Try.uncheck(s -> 
+        AtomicInteger orphans = new AtomicInteger(Integer.parseInt(state.getProperty("orphans", "0")));
+        try
+        {
+            if(state.getProperty("files") == null)
+            {
+                //the dirs come in no particular order, they are linked once all are known
+                List<File> dirs = driver.getAllDirs().collect(Collectors.toList());
+                orphans.addAndGet(dirs.size() - ri.load(dirs.stream()).size());
+                state.setProperty("files", "");
+                checkpoint(ri, orphans);
+            }
+
+            if(!Boolean.parseBoolean(state.getProperty("listed")))
+            {
+                String token = state.getProperty("files");
+                //pages are listed ahead as the downloads of the previous ones go on
+                try(Stream<FileList> lists = driver.listFiles(token.isEmpty() ? null : token))
+                {
+                    driver.downloadFiles(lists.flatMap(Try.uncheckFunction(list ->
+                    {
+                        checkpoint(ri, orphans);
+                        List<File> files = list.getItems() != null ? list.getItems() : Collections.emptyList();
+                        Map<File, Path> mapPath = ri.load(files.stream());
+                        orphans.addAndGet(files.size() - mapPath.size());
+                        List<File> todo = download ? files.stream()
+                                            .filter(f -> mapPath.containsKey(f) && !done.contains(f.getId())
+                                                            && !RemoteChanges.needsExport(f))
+                                            .collect(Collectors.toList())
+                                        : Collections.emptyList();
+                        String next = list.getNextPageToken();
+                        Page page = new Page(next != null && !next.isEmpty() ? next : null, todo.size());
+                        pages.addLast(page);
+                        todo.forEach(f -> pageOf.put(f, page));
+                        return todo.stream().map(f -> new SimpleImmutableEntry<>(f, mapPath.get(f)));
+                    })), seed, this::downloaded);
+                }
+                checkpoint(ri, orphans);
+            }
+        }
+        catch(IOException | RuntimeException e)
         {
-            List<File> files = s.get();
-            Map<File, Path> mapPath = ri.add(files.stream());
-            if(noDown) 
-                driver.downloadFiles(files.stream().parallel()).forEach(e -> 
-                    Optional.ofNullable(mapPath.get(e.getKey()))
-                                    .map(Try.uncheckFunction(dst -> moveFile(e.getValue(), home.resolve(dst)))));
-        }));
-        
-        ri.setLastRevisionId(driver.getLargestChangeId());
+            //the downloads under way have finished by now
+            try
+            {
+                checkpoint(ri, orphans);
+            }
+            catch(IOException | RuntimeException ce)
+            {
+                e.addSuppressed(ce);
+            }
+            throw e;
+        }
+        finally
+        {
+            if(doneLog != null) doneLog.close();
+        }
+
+        if(orphans.get() > 0)
+            log.warning("Skipped " + orphans.get() + " entries whose folder is not owned by you or could not be listed");
+        //the revision read before the listing began, later changes are picked up by the next pull
         ri.setLastSyncTime();
         driver.saveRemoteIndex();
+        if(!simulation)
+        {
+            Files.deleteIfExists(statePath);
+            Files.deleteIfExists(donePath);
+        }
         log.info("Cloned to revision: " + ri.getLastRevisionId());
     }
-    
-    private static Path moveFile(Path tmpPath, Path lp) throws IOException
+
+    private void downloaded(File file) throws IOException
+    {
+        if(doneLog != null)
+            synchronized(doneLog)
+            {
+                doneLog.write(file.getId());
+                doneLog.newLine();
+            }
+        Page page = pageOf.remove(file);
+        if(page != null) page.pending.decrementAndGet();
+    }
+
+    /**
+     * Records the pages whose files are all downloaded, along with the index and the ids of the files done since.
+     */
+    private void checkpoint(RemoteIndex ri, AtomicInteger orphans) throws IOException
     {
-        Path parent = lp.getParent();
-        if(Files.notExists(parent))
+        while(!pages.isEmpty() && pages.peekFirst().pending.get() == 0)
         {
-            log.info("created: " + parent);
-            Files.createDirectories(parent);
+            Page page = pages.removeFirst();
+            if(page.nextToken != null)
+                state.setProperty("files", page.nextToken);
+            else
+                state.setProperty("listed", "true");
         }
-        log.info("created: " + lp);
-        return Files.move(tmpPath, lp, StandardCopyOption.REPLACE_EXISTING);
+        state.setProperty("orphans", String.valueOf(orphans.get()));
+        if(simulation) return;
+
+        synchronized(doneLog)
+        {
+            doneLog.flush();
+        }
+        driver.saveRemoteIndex();
+        Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+        try(OutputStream os = Files.newOutputStream(tmp))
+        {
+            state.store(os, "clone checkpoint");
+        }
+        IndexFile.move(tmp, statePath);
     }
 
     public Driver getDriver()
     {
         return driver;
-    }    
-    
+    }
+
     public static List<String> help(String name)
     {
-        return Collections.singletonList(name + "\t not implemented");
+        return Collections.singletonList(name + "\t [--no-download] [--seed] [--resume]");
     }
 }
@@ -0,0 +1,722 @@
+package org.sb.jgdrive;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * The tree behind {@link RemoteIndex}, stored in parallel primitive arrays instead of one object per entry.
+ * <p>
+ * A node is an int handle into the arrays. Children are linked through first-child / next-sibling (and
+ * prev-sibling for O(1) unlinking). Ids and titles live in two shared byte pools, ids packed at 6 bits per
+ * character when they only use the Drive id alphabet. Two open addressing tables map an id to its node
+ * and a (parent, title) pair to a child.
+ * <p>
+ * Drive allows several children with the same title, only one of them can exist locally: the one with the
+ * smallest id is mapped, the others are chained behind it through {@link #sameTitle} and take its place
+ * when it is removed.
+ * <p>
+ * Not thread safe, concurrent reads are fine as long as there is no concurrent mutation.
+ */
+final class CompactTree
+{
+    static final int NONE = -1;
+    private static final int FREE = -2;
+    private static final String ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    private static final byte[] ID_CODES = new byte[128];
+    static
+    {
+        Arrays.fill(ID_CODES, (byte)-1);
+        for(int i = 0; i < ID_CHARS.length(); i++) ID_CODES[ID_CHARS.charAt(i)] = (byte)i;
+    }
+
+    private int[] parent;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] prevSibling;
+    private int[] sameTitle;
+    private int[] idOff;
+    private int[] titleOff;
+    private int count;
+    private int live;
+    private int free = NONE;
+    private int root = NONE;
+
+    private byte[] metaFlags;
+    private byte[] md5;
+    private long[] size;
+    private long[] modified;
+    private long[] version;
+
+    private byte[] idPool;
+    private int idPoolSize;
+    private int idGarbage;
+    private byte[] titlePool;
+    private int titlePoolSize;
+    private int titleGarbage;
+
+    private int[] idTable;
+    private int idTableCount;
+    private int[] titleTable;
+    private int titleTableCount;
+
+    CompactTree(int expected)
+    {
+        int cap = Math.max(16, expected);
+        parent = new int[cap];
+        firstChild = new int[cap];
+        nextSibling = new int[cap];
+        prevSibling = new int[cap];
+        sameTitle = new int[cap];
+        idOff = new int[cap];
+        titleOff = new int[cap];
+        idPool = new byte[cap * 24];
+        titlePool = new byte[cap * 16];
+        idTable = new int[tableLength(cap)];
+        titleTable = new int[tableLength(cap)];
+    }
+
+    int root()
+    {
+        return root;
+    }
+
+    void setRoot(int n)
+    {
+        root = n;
+    }
+
+    int size()
+    {
+        return live;
+    }
+
+    /**
+     * @return the handles of all nodes, attached or not
+     */
+    IntStream nodes()
+    {
+        return IntStream.range(0, count).filter(n -> parent[n] != FREE);
+    }
+
+    boolean isLive(int n)
+    {
+        return n >= 0 && n < count && parent[n] != FREE;
+    }
+
+    int parent(int n)
+    {
+        return parent[n];
+    }
+
+    int firstChild(int n)
+    {
+        return firstChild[n];
+    }
+
+    int nextSibling(int n)
+    {
+        return nextSibling[n];
+    }
+
+    String id(int n)
+    {
+        return unpackId(idPool, idOff[n]);
+    }
+
+    String title(int n)
+    {
+        int off = titleOff[n];
+        int len = varInt(titlePool, off);
+        off += varIntSize(len);
+        return new String(titlePool, off, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a node, attached under the given parent unless it is {@link #NONE}.
+     */
+    int add(String id, String title, int par)
+    {
+        return add(utf8(id), utf8(title), par);
+    }
+
+    /**
+     * Same as {@link #add(String, String, int)} with the UTF-8 bytes of the id and title, saves decoding them
+     * when they come from a snapshot.
+     */
+    int add(byte[] id, byte[] title, int par)
+    {
+        int n = alloc();
+        //not a live node yet, a compaction of the pools must not copy its offsets
+        parent[n] = FREE;
+        idOff[n] = putId(packId(id));
+        titleOff[n] = putTitle(title);
+        parent[n] = firstChild[n] = nextSibling[n] = prevSibling[n] = sameTitle[n] = NONE;
+        if(metaFlags != null) metaFlags[n] = 0;
+        live++;
+        idInsert(n);
+        if(par != NONE) attach(n, par);
+        return n;
+    }
+
+    int find(String id)
+    {
+        byte[] key = packId(utf8(id));
+        int mask = idTable.length - 1;
+        for(int i = hash(key, 0, key.length) & mask; ; i = (i + 1) & mask)
+        {
+            int e = idTable[i];
+            if(e == 0) return NONE;
+            if(equals(idPool, idOff[e - 1], key)) return e - 1;
+        }
+    }
+
+    int child(int dir, String title)
+    {
+        byte[] key = utf8(title);
+        int mask = titleTable.length - 1;
+        for(int i = titleHash(dir, key, 0, key.length) & mask; ; i = (i + 1) & mask)
+        {
+            int e = titleTable[i];
+            if(e == 0) return NONE;
+            if(parent[e - 1] == dir && titleEquals(e - 1, key)) return e - 1;
+        }
+    }
+
+    /**
+     * Moves the node (with its subtree) under the given parent.
+     */
+    void attach(int n, int par)
+    {
+        if(isUnder(par, n)) throw new IllegalArgumentException("Cannot move " + id(n) + " under its own descendant " + id(par));
+        if(parent[n] != NONE) unlink(n);
+        parent[n] = par;
+        prevSibling[n] = NONE;
+        nextSibling[n] = firstChild[par];
+        if(firstChild[par] != NONE) prevSibling[firstChild[par]] = n;
+        firstChild[par] = n;
+        titleInsert(n);
+    }
+
+    /**
+     * Takes the node (with its subtree) out of its parent, it stays in the tree until it is attached or removed.
+     */
+    void detach(int n)
+    {
+        if(parent[n] != NONE) unlink(n);
+    }
+
+    /**
+     * @return true if the node is the given ancestor or below it
+     */
+    boolean isUnder(int n, int ancestor)
+    {
+        for(int a = n; a != NONE; a = parent[a])
+            if(a == ancestor) return true;
+        return false;
+    }
+
+    void setTitle(int n, String title)
+    {
+        byte[] key = utf8(title);
+        if(titleEquals(n, key)) return;
+        if(parent[n] != NONE) titleRemove(n);
+        int off = putTitle(key);
+        //counted once the new title is in, a compaction it caused has moved the old one along with the live titles
+        titleGarbage += titleSize(titleOff[n]);
+        titleOff[n] = off;
+        if(parent[n] != NONE) titleInsert(n);
+    }
+
+    /**
+     * Removes the node and its subtree.
+     */
+    void remove(int n)
+    {
+        if(parent[n] != NONE) unlink(n);
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = n;
+        while(top > 0)
+        {
+            int m = stack[--top];
+            for(int ch = firstChild[m]; ch != NONE; ch = nextSibling[ch])
+            {
+                titleRemove(ch);
+                if(top == stack.length) stack = Arrays.copyOf(stack, top << 1);
+                stack[top++] = ch;
+            }
+            idRemove(m);
+            idGarbage += idLength(idPool, idOff[m]);
+            titleGarbage += titleSize(titleOff[m]);
+            parent[m] = FREE;
+            nextSibling[m] = free;
+            free = m;
+            live--;
+        }
+    }
+
+    private void unlink(int n)
+    {
+        titleRemove(n);
+        if(prevSibling[n] != NONE) nextSibling[prevSibling[n]] = nextSibling[n];
+        else firstChild[parent[n]] = nextSibling[n];
+        if(nextSibling[n] != NONE) prevSibling[nextSibling[n]] = prevSibling[n];
+        parent[n] = nextSibling[n] = prevSibling[n] = NONE;
+    }
+
+    private int alloc()
+    {
+        if(free != NONE)
+        {
+            int n = free;
+            free = nextSibling[n];
+            return n;
+        }
+        if(count == parent.length)
+        {
+            int cap = count + (count >> 1);
+            parent = Arrays.copyOf(parent, cap);
+            firstChild = Arrays.copyOf(firstChild, cap);
+            nextSibling = Arrays.copyOf(nextSibling, cap);
+            prevSibling = Arrays.copyOf(prevSibling, cap);
+            sameTitle = Arrays.copyOf(sameTitle, cap);
+            idOff = Arrays.copyOf(idOff, cap);
+            titleOff = Arrays.copyOf(titleOff, cap);
+            if(metaFlags != null) growMeta(cap);
+        }
+        return count++;
+    }
+
+    //---- file meta-data, allocated with the first node that has some
+
+    private static final byte HAS_META = 1;
+    private static final byte HAS_MD5 = 2;
+
+    boolean hasMeta(int n)
+    {
+        return metaFlags != null && (metaFlags[n] & HAS_META) != 0;
+    }
+
+    /**
+     * @param md5 the 16 bytes of the checksum, null for folders and files without content
+     */
+    void setMeta(int n, byte[] md5, long size, long modified, long version)
+    {
+        if(metaFlags == null) growMeta(parent.length);
+        metaFlags[n] = (byte)(HAS_META | (md5 != null ? HAS_MD5 : 0));
+        if(md5 != null) System.arraycopy(md5, 0, this.md5, n << 4, 16);
+        this.size[n] = size;
+        this.modified[n] = modified;
+        this.version[n] = version;
+    }
+
+    void clearMeta(int n)
+    {
+        if(metaFlags != null) metaFlags[n] = 0;
+    }
+
+    byte[] md5(int n)
+    {
+        return hasMeta(n) && (metaFlags[n] & HAS_MD5) != 0 ? Arrays.copyOfRange(md5, n << 4, (n + 1) << 4) : null;
+    }
+
+    long size(int n)
+    {
+        return size[n];
+    }
+
+    long modified(int n)
+    {
+        return modified[n];
+    }
+
+    long version(int n)
+    {
+        return version[n];
+    }
+
+    private void growMeta(int cap)
+    {
+        if(metaFlags == null)
+        {
+            metaFlags = new byte[cap];
+            md5 = new byte[cap << 4];
+            size = new long[cap];
+            modified = new long[cap];
+            version = new long[cap];
+            return;
+        }
+        metaFlags = Arrays.copyOf(metaFlags, cap);
+        md5 = Arrays.copyOf(md5, cap << 4);
+        size = Arrays.copyOf(size, cap);
+        modified = Arrays.copyOf(modified, cap);
+        version = Arrays.copyOf(version, cap);
+    }
+
+    //---- id table
+
+    private void idInsert(int n)
+    {
+        if((idTableCount + 1) * 4L > idTable.length * 3L)
+            idTable = rehash(idTable, this::idHash);
+        int mask = idTable.length - 1;
+        int i = idHash(n) & mask;
+        while(idTable[i] != 0) i = (i + 1) & mask;
+        idTable[i] = n + 1;
+        idTableCount++;
+    }
+
+    private void idRemove(int n)
+    {
+        int mask = idTable.length - 1;
+        int i = idHash(n) & mask;
+        while(idTable[i] != n + 1) i = (i + 1) & mask;
+        tableRemove(idTable, i, this::idHash);
+        idTableCount--;
+    }
+
+    private int idHash(int n)
+    {
+        int off = idOff[n];
+        return hash(idPool, off, idLength(idPool, off));
+    }
+
+    //---- title table, only the head of a same title chain is in the table
+
+    private void titleInsert(int n)
+    {
+        int mask = titleTable.length - 1;
+        int i = titleHash(n) & mask;
+        for(int e; (e = titleTable[i]) != 0; i = (i + 1) & mask)
+        {
+            int head = e - 1;
+            if(parent[head] == parent[n] && sameTitle(head, n))
+            {
+                String id = id(n);
+                if(id.compareTo(id(head)) < 0)
+                {
+                    sameTitle[n] = head;
+                    titleTable[i] = n + 1;
+                }
+                else
+                {
+                    int m = head;
+                    while(sameTitle[m] != NONE && id(sameTitle[m]).compareTo(id) < 0) m = sameTitle[m];
+                    sameTitle[n] = sameTitle[m];
+                    sameTitle[m] = n;
+                }
+                return;
+            }
+        }
+        if((titleTableCount + 1) * 4L > titleTable.length * 3L)
+        {
+            titleTable = rehash(titleTable, this::titleHash);
+            mask = titleTable.length - 1;
+            i = titleHash(n) & mask;
+            while(titleTable[i] != 0) i = (i + 1) & mask;
+        }
+        sameTitle[n] = NONE;
+        titleTable[i] = n + 1;
+        titleTableCount++;
+    }
+
+    private void titleRemove(int n)
+    {
+        int mask = titleTable.length - 1;
+        int i = titleHash(n) & mask;
+        for(int e; (e = titleTable[i]) != 0; i = (i + 1) & mask)
+        {
+            int head = e - 1;
+            if(head == n)
+            {
+                if(sameTitle[n] != NONE)
+                    titleTable[i] = sameTitle[n] + 1;
+                else
+                {
+                    tableRemove(titleTable, i, this::titleHash);
+                    titleTableCount--;
+                }
+                break;
+            }
+            if(parent[head] == parent[n] && sameTitle(head, n))
+            {
+                for(int m = head; sameTitle[m] != NONE; m = sameTitle[m])
+                    if(sameTitle[m] == n)
+                    {
+                        sameTitle[m] = sameTitle[n];
+                        break;
+                    }
+                break;
+            }
+        }
+        sameTitle[n] = NONE;
+    }
+
+    private int titleHash(int n)
+    {
+        int off = titleOff[n];
+        int len = varInt(titlePool, off);
+        return titleHash(parent[n], titlePool, off + varIntSize(len), len);
+    }
+
+    private static int titleHash(int par, byte[] b, int off, int len)
+    {
+        return mix(hash(b, off, len) * 31 + par);
+    }
+
+    private boolean titleEquals(int n, byte[] key)
+    {
+        int off = titleOff[n];
+        int len = varInt(titlePool, off);
+        if(len != key.length) return false;
+        off += varIntSize(len);
+        for(int i = 0; i < len; i++)
+            if(titlePool[off + i] != key[i]) return false;
+        return true;
+    }
+
+    private boolean sameTitle(int a, int b)
+    {
+        int offA = titleOff[a], offB = titleOff[b];
+        if(offA == offB) return true;
+        int len = varInt(titlePool, offA);
+        if(len != varInt(titlePool, offB)) return false;
+        int h = varIntSize(len);
+        for(int i = h; i < h + len; i++)
+            if(titlePool[offA + i] != titlePool[offB + i]) return false;
+        return true;
+    }
+
+    /**
+     * Linear probing delete, shifts back the entries of the cluster that would otherwise become unreachable.
+     */
+    private static void tableRemove(int[] table, int i, IntUnaryOperator hashOf)
+    {
+        int mask = table.length - 1;
+        for(int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask)
+        {
+            int k = hashOf.applyAsInt(table[j] - 1) & mask;
+            boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if(!stays)
+            {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+    }
+
+    private static int[] rehash(int[] table, IntUnaryOperator hashOf)
+    {
+        int[] grown = new int[table.length << 1];
+        int mask = grown.length - 1;
+        for(int e : table)
+            if(e != 0)
+            {
+                int i = hashOf.applyAsInt(e - 1) & mask;
+                while(grown[i] != 0) i = (i + 1) & mask;
+                grown[i] = e;
+            }
+        return grown;
+    }
+
+    private static int tableLength(int entries)
+    {
+        int len = 16;
+        while(len * 3L < entries * 4L) len <<= 1;
+        return len;
+    }
+
+    private static int hash(byte[] b, int off, int len)
+    {
+        int h = 1;
+        for(int i = off; i < off + len; i++) h = 31 * h + b[i];
+        return mix(h);
+    }
+
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static boolean equals(byte[] pool, int off, byte[] key)
+    {
+        for(int i = 0; i < key.length; i++)
+            if(off + i >= pool.length || pool[off + i] != key[i]) return false;
+        return idLength(pool, off) == key.length;
+    }
+
+    //---- pools, the bytes of removed nodes and replaced titles are reclaimed when a pool is full and at least
+    //half of it is garbage, instead of growing it
+
+    private int putId(byte[] packed)
+    {
+        if(idPoolSize + packed.length > idPool.length && idGarbage >= idPoolSize / 2)
+        {
+            byte[] pool = new byte[idPool.length];
+            int size = 0;
+            for(int n = 0; n < count; n++)
+                if(parent[n] != FREE)
+                {
+                    int len = idLength(idPool, idOff[n]);
+                    System.arraycopy(idPool, idOff[n], pool, size, len);
+                    idOff[n] = size;
+                    size += len;
+                }
+            idPool = pool;
+            idPoolSize = size;
+            idGarbage = 0;
+        }
+        if(idPoolSize + packed.length > idPool.length)
+            idPool = Arrays.copyOf(idPool, Math.max(idPool.length + (idPool.length >> 1), idPoolSize + packed.length));
+        System.arraycopy(packed, 0, idPool, idPoolSize, packed.length);
+        int off = idPoolSize;
+        idPoolSize += packed.length;
+        return off;
+    }
+
+    private int putTitle(byte[] utf8)
+    {
+        int len = varIntSize(utf8.length) + utf8.length;
+        if(titlePoolSize + len > titlePool.length && titleGarbage >= titlePoolSize / 2)
+        {
+            byte[] pool = new byte[titlePool.length];
+            int size = 0;
+            for(int n = 0; n < count; n++)
+                if(parent[n] != FREE)
+                {
+                    int tlen = titleSize(titleOff[n]);
+                    System.arraycopy(titlePool, titleOff[n], pool, size, tlen);
+                    titleOff[n] = size;
+                    size += tlen;
+                }
+            titlePool = pool;
+            titlePoolSize = size;
+            titleGarbage = 0;
+        }
+        if(titlePoolSize + len > titlePool.length)
+            titlePool = Arrays.copyOf(titlePool, Math.max(titlePool.length + (titlePool.length >> 1), titlePoolSize + len));
+        int off = titlePoolSize;
+        int pos = putVarInt(titlePool, off, utf8.length);
+        System.arraycopy(utf8, 0, titlePool, pos, utf8.length);
+        titlePoolSize += len;
+        return off;
+    }
+
+    private int titleSize(int off)
+    {
+        int len = varInt(titlePool, off);
+        return varIntSize(len) + len;
+    }
+
+    private static byte[] utf8(String str)
+    {
+        return str == null ? new byte[0] : str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drive ids only use [A-Za-z0-9-_], these are packed at 6 bits per character behind a length byte.
+     * Anything else is kept as UTF-8 behind a 0x80 marker byte and a varint length.
+     */
+    static byte[] packId(byte[] id)
+    {
+        int len = id.length;
+        boolean packable = len < 0x80;
+        for(int i = 0; packable && i < len; i++)
+            packable = id[i] >= 0 && ID_CODES[id[i]] >= 0;
+        if(!packable)
+        {
+            byte[] b = new byte[1 + varIntSize(len) + len];
+            b[0] = (byte)0x80;
+            System.arraycopy(id, 0, b, putVarInt(b, 1, len), len);
+            return b;
+        }
+        byte[] b = new byte[1 + (len * 6 + 7) / 8];
+        b[0] = (byte)len;
+        int acc = 0, bits = 0, pos = 1;
+        for(int i = 0; i < len; i++)
+        {
+            acc = ((acc << 6) | ID_CODES[id[i]]) & 0xFFFF;
+            bits += 6;
+            if(bits >= 8)
+            {
+                bits -= 8;
+                b[pos++] = (byte)(acc >>> bits);
+            }
+        }
+        if(bits > 0) b[pos] = (byte)(acc << (8 - bits));
+        return b;
+    }
+
+    private static String unpackId(byte[] pool, int off)
+    {
+        int len = pool[off] & 0xFF;
+        if(len == 0x80)
+        {
+            len = varInt(pool, off + 1);
+            return new String(pool, off + 1 + varIntSize(len), len, StandardCharsets.UTF_8);
+        }
+        char[] cs = new char[len];
+        int acc = 0, bits = 0, pos = off + 1;
+        for(int i = 0; i < len; i++)
+        {
+            if(bits < 6)
+            {
+                acc = ((acc << 8) | (pool[pos++] & 0xFF)) & 0xFFFF;
+                bits += 8;
+            }
+            bits -= 6;
+            cs[i] = ID_CHARS.charAt((acc >>> bits) & 0x3F);
+        }
+        return new String(cs);
+    }
+
+    private static int idLength(byte[] pool, int off)
+    {
+        int len = pool[off] & 0xFF;
+        if(len == 0x80)
+        {
+            len = varInt(pool, off + 1);
+            return 1 + varIntSize(len) + len;
+        }
+        return 1 + (len * 6 + 7) / 8;
+    }
+
+    private static int putVarInt(byte[] b, int pos, int v)
+    {
+        while((v & ~0x7F) != 0)
+        {
+            b[pos++] = (byte)((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        b[pos++] = (byte)v;
+        return pos;
+    }
+
+    private static int varInt(byte[] b, int pos)
+    {
+        int v = 0;
+        for(int shift = 0; ; shift += 7)
+        {
+            byte x = b[pos++];
+            v |= (x & 0x7F) << shift;
+            if(x >= 0) return v;
+        }
+    }
+
+    private static int varIntSize(int v)
+    {
+        int size = 1;
+        while((v & ~0x7F) != 0)
+        {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -18,7 +18,6 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeTokenRequest;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
@@ -119,7 +118,7 @@ class CredHelper
         
         try
         {
-            final HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            final HttpTransport httpTransport = HttpTransports.make(Driver.readOpts(jgdrive));
             final JsonFactory jfac = Driver.jfac;
             return new CredHelper(jgdrive, httpTransport, jfac);
         }
@@ -4,11 +4,14 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.security.GeneralSecurityException;
 import java.util.AbstractMap.SimpleImmutableEntry;
@@ -28,27 +31,24 @@ import java.util.Random;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
-import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import javax.xml.bind.DatatypeConverter;
+
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.batch.BatchCallback;
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.googleapis.json.GoogleJsonError;
-import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonGenerator;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -61,10 +61,27 @@ import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
 
+import org.sb.jgdrive.RemoteIndex.FileMeta;
+
 public class Driver
 {
     static final String MIME_TYPE_DIR = "application/vnd.google-apps.folder";
-    private static final String FILE_ATTRS = "id,title,parents(id),version,mimeType,modifiedDate,md5Checksum,labels(trashed)";
+    private static final String FILE_ATTRS = "id,title,parents(id),version,mimeType,modifiedDate,md5Checksum,fileSize,labels(trashed)";
+    private static final long JOURNAL_MAX_BYTES = 4 << 20;
+    private static final int DOWNLOAD_THREADS = 4;
+    private static final int DOWNLOAD_RETRIES = 3;
+    private static final int UPLOAD_CHUNK_SIZE = 8 << 20;
+    private static final int UPLOAD_RETRIES = 3;
+    private static final long STAGING_MAX_AGE_DAYS = 7;
+    private static final int BATCH_THREADS = 4;
+    private static final int BATCH_RETRIES = 5;
+    private static final double MAX_REQUESTS_PER_SECOND = 10;
+    private static final int CHANGES_PAGE_SIZE = 1000;
+    private static final int CHANGES_PREFETCH_PAGES = 2;
+    private static final int LISTING_PREFETCH_PAGES = 4;
+    private static final int BURST = 20;
+    private static final int SCAN_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int HASH_THREADS = 4;
     private static final Logger log = Logger.getLogger(Driver.class.getPackage().getName());
     static final JsonFactory jfac = JacksonFactory.getDefaultInstance();
     static final String appName = "jgdrive";
@@ -73,44 +90,80 @@ public class Driver
     private final Supplier<Drive> drive;
     private final Supplier<HashSet<String>> li = makeLocalIndex();
     private final boolean simulation;
-    private final Supplier<Pattern[]> ignores = CachingSupplier.wrap(() -> pat(readIgnores("ignore.txt", "^\\.~.*#$", "^~\\$.*")));
-    private final Supplier<Pattern[]> remIgnores = CachingSupplier.wrap(() -> pat(readIgnores("remote_ignore.txt")));
+    private final Supplier<IgnoreRules> ignores = CachingSupplier.wrap(() -> IgnoreRules.compile(readIgnores("ignore.txt", "^\\.~.*#$", "^~\\$.*")));
+    private final Supplier<IgnoreRules> remIgnores = CachingSupplier.wrap(() -> IgnoreRules.compile(readIgnores("remote_ignore.txt")));
     private final Supplier<Optional<Properties>> opts = CachingSupplier.wrap(() -> readOpts());
+    private final Supplier<TransferPool> downloads = CachingSupplier.wrap(() -> new TransferPool("download", 
+                                    opt("transfer.downloadThreads", Integer::parseInt).orElse(DOWNLOAD_THREADS)));
+    private final Supplier<TransferPool> hashes = CachingSupplier.wrap(() -> new TransferPool("hash", 
+                                    opt("hash.threads", Integer::parseInt).orElse(HASH_THREADS)));
+    private final Supplier<RateLimiter> limiter = CachingSupplier.wrap(() -> makeRateLimiter());
+    private final Supplier<BatchExecutor> batches = CachingSupplier.wrap(() -> makeBatchExecutor());
+    private final Supplier<StatCache> stats = CachingSupplier.wrap(() -> StatCache.read(getHome(), statsPath()));
+    private IndexJournal journal;
     
     public Driver(Path home, boolean simulation) throws IllegalStateException, IOException
     {
         this.home = home;
+        this.simulation = simulation;
 
         ri = CachingSupplier.wrap(Try.uncheck(() -> 
             {
-                Path riPath = riPath();
-                if (!Files.exists(riPath))
-                    throw new IllegalStateException("Could not find an index at " + riPath.toAbsolutePath());
-                log.fine("Reading index from " + riPath);
-                /*FlatRemoteIndex fri = jfac.fromReader(new FileReader(riPath.toFile()), FlatRemoteIndex.class);
-                return new RemoteIndex(fri.lastSyncTimeEpochMillis, fri.lastRevisionId, fri.entryById);*/
-                return jfac.fromReader(new FileReader(riPath.toFile()), RemoteIndex.class);
+                //the index of a clone that broke off does not have the files it did not get to, a push would trash them
+                if(Files.exists(stateFile(Clone.STATE_FILE)))
+                    throw new IllegalStateException("The clone of " + home + " did not finish, "
+                                                        + "run 'clone --resume' to complete it first.");
+                return readRemoteIndex();
             }));
         
         drive = CachingSupplier.wrap(Try.uncheck(() -> makeDrive()));
-        this.simulation = simulation;
+        if(!simulation) cleanStaging();
     }
 
-    public Driver(Path home, Drive drive, boolean simulation) throws IllegalStateException, IOException
+    /**
+     * @param resume if the index saved by an interrupted clone is to be used, otherwise a new one is started
+     */
+    public Driver(Path home, HttpTransport httpTransport, Credential cred, boolean resume, boolean simulation) 
+                                                                        throws IllegalStateException, IOException
     {
         this.home = home;
+        Drive drive = new Drive.Builder(httpTransport, jfac, withOpts(cred)).setApplicationName(appName).build();
         this.drive = () -> drive;
         Path riPath = jgdrive();
         if (!Files.exists(riPath))
             Files.createDirectories(riPath);
         else if(!Files.isDirectory(riPath))
             throw new IllegalStateException("The path '" + riPath + "' must be a directory.");
-        this.ri = CachingSupplier.wrap(Try.uncheck(() -> 
+        this.ri = resume ? CachingSupplier.wrap(Try.uncheck(() -> readRemoteIndex()))
+                         : CachingSupplier.wrap(Try.uncheck(() -> 
                             {
                                 Entry<Long, String> pair = getLargestChangeIdAndRootFolderId();
                                 return new RemoteIndex(pair.getKey(), pair.getValue());
                             }));
         this.simulation = simulation;
+        if(!simulation) cleanStaging();
+    }
+
+    private RemoteIndex readRemoteIndex() throws IOException
+    {
+        Path riPath = riPath();
+        RemoteIndex idx;
+        if (Files.exists(riPath))
+        {
+            log.fine("Reading index from " + riPath);
+            idx = IndexFile.read(riPath);
+        }
+        else
+        {
+            Path jsonPath = jsonRiPath();
+            if (!Files.exists(jsonPath))
+                throw new IllegalStateException("Could not find an index at " + riPath.toAbsolutePath());
+            idx = migrateRemoteIndex(jsonPath);
+        }
+        long journalLength = IndexJournal.replay(journalPath(), idx);
+        if(!simulation)
+            idx.setJournal(journal = IndexJournal.open(journalPath(), journalLength));
+        return idx;
     }
 
     public Path getHome()
@@ -125,31 +178,55 @@ public class Driver
     
     public RemoteChanges getRemoteChanges(Long lastChangeId, Optional<FileTime> modifiedDtm) throws IOException
     {
-        Stream<Change> stream = Stream.empty();
+        List<Change> changes = new ArrayList<>();
+        long[] id = {lastChangeId};
+        try(Stream<RemoteChanges> pages = streamRemoteChanges(lastChangeId, modifiedDtm))
+        {
+            pages.forEach(rc -> 
+            {
+                changes.addAll(rc.getChanges());
+                id[0] = rc.getLargestChangeId();
+            });
+        }
+        return new RemoteChanges(changes.stream(), id[0]);
+    }
+    
+    /**
+     * Pages of changes.pageSize (default {@value #CHANGES_PAGE_SIZE}) changes, of which changes.prefetchPages 
+     * (default {@value #CHANGES_PREFETCH_PAGES}) are read ahead. The stream must be closed to stop the read-ahead.
+     */
+    public Stream<RemoteChanges> streamRemoteChanges(long lastChangeId, Optional<FileTime> modifiedDtm) throws IOException
+    {
         Changes.List list = drive.get().changes().list()
                         .setStartChangeId(lastChangeId + 1)
                         .setIncludeDeleted(true)
                         .setIncludeSubscribed(false)
-                        .setFields("largestChangeId,nextPageToken,items(deleted,file(" + FILE_ATTRS + "))");
-        Long id = null;
-        do
+                        .setMaxResults(opt("changes.pageSize", Integer::parseInt).orElse(CHANGES_PAGE_SIZE))
+                        .setFields("largestChangeId,nextPageToken,items(id,fileId,deleted,file(" + FILE_ATTRS + "))");
+        long[] last = {lastChangeId};
+        boolean[] done = {false};
+        return Prefetch.stream("changes", opt("changes.prefetchPages", Integer::parseInt).orElse(CHANGES_PREFETCH_PAGES), () -> 
         {
+            if(done[0]) return null;
             ChangeList changes = list.execute();
-            if(id == null) id = changes.getLargestChangeId();
-            stream = Stream.concat(stream, changes.getItems().stream()
-                        .filter(ch ->  ch.getFile() == null || 
-                         			   modifiedDtm.map(dt -> ch.getFile().getModifiedDate().getValue() > dt.toMillis()).orElse(true)));
             list.setPageToken(changes.getNextPageToken());
-        	info("Retrieved remote changes: " + id, list.getPageToken());
-        }
-        while(list.getPageToken() != null && list.getPageToken().length() > 0);
-        
-        return new RemoteChanges(stream, id);
+            boolean more = list.getPageToken() != null && list.getPageToken().length() > 0;
+            info("Retrieved remote changes: " + changes.getLargestChangeId(), ", next page: " + list.getPageToken());
+            //a page covers the changes up to its last one, the last page all of them
+            long upTo = more ? changes.getItems().stream().mapToLong(ch -> ch.getId()).max().orElse(last[0]) 
+                             : changes.getLargestChangeId();
+            last[0] = upTo;
+            done[0] = !more;
+            return new RemoteChanges(changes.getItems().stream()
+                        .filter(ch ->  ch.getFile() == null || 
+                                       modifiedDtm.map(dt -> ch.getFile().getModifiedDate().getValue() > dt.toMillis()).orElse(true)),
+                        changes.getLargestChangeId(), upTo);
+        });
     }
 
     private Drive makeDrive() throws IOException, GeneralSecurityException
     {
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        HttpTransport httpTransport = HttpTransports.make(opts.get());
         CredHelper credHelper = new CredHelper(jgdrive(), httpTransport, jfac);
         Credential cred = credHelper.get()
                             .orElseThrow(() -> new IOException("Did not find credentials from " + jgdrive()));
@@ -165,24 +242,142 @@ public class Driver
 					.ifPresent(request::setConnectTimeout);;
 				opt("http.readTimeOutMillis", Integer::parseInt)
 					.ifPresent(request::setReadTimeout);
+				opt("http.retries", Integer::parseInt)
+					.ifPresent(request::setNumberOfRetries);
 				cred.initialize(request);
+				limiter.get().install(request);
 			}
 		};
 	}
 
+    /**
+     * At most http.maxRequestsPerSecond (default {@value #MAX_REQUESTS_PER_SECOND}) and http.burst 
+     * (default {@value #BURST}) requests at once, lowered while drive is throttling.
+     */
+    private RateLimiter makeRateLimiter()
+    {
+        return new RateLimiter(opt("http.maxRequestsPerSecond", Double::parseDouble).orElse(MAX_REQUESTS_PER_SECOND),
+                                opt("http.burst", Integer::parseInt).orElse(BURST));
+    }
+
+    /**
+     * Makes the index changes durable: syncs the journal, or writes a new snapshot 
+     * once the journal has grown past 'index.journalMaxBytes'.
+     */
 	public void saveRemoteIndex() throws IOException
     {
         if(!simulation)
         {
-            FileWriter fw = new FileWriter(riPath().toFile());
-            JsonGenerator gen = jfac.createJsonGenerator(fw);
-            gen.serialize(ri.get());
-            gen.flush();
-            fw.close();
+            RemoteIndex idx = ri.get();
+            if(journal != null && journal.size() < opt("index.journalMaxBytes", Long::parseLong).orElse(JOURNAL_MAX_BYTES))
+                journal.commit();
+            else
+            {
+                IndexFile.write(idx, riPath(), opt("index.compress", Boolean::parseBoolean).orElse(false));
+                if(journal == null) 
+                    idx.setJournal(journal = IndexJournal.open(journalPath(), 0));
+                else
+                    journal.reset();
+            }
+            stats.get().write(statsPath());
         }
     }
 
+    /**
+     * Syncs the journal alone, so that what a command has done so far is kept should it not get to the end.
+     * Unlike {@link #saveRemoteIndex()} it may be called while other threads change the index.
+     */
+    void commitRemoteIndex() throws IOException
+    {
+        if(!simulation && journal != null) journal.commit();
+    }
+
+    private RemoteIndex migrateRemoteIndex(Path jsonPath) throws IOException
+    {
+        log.info("Migrating index " + jsonPath + " to " + riPath());
+        long start = System.currentTimeMillis();
+        RemoteIndex idx;
+        try(FileReader fr = new FileReader(jsonPath.toFile()))
+        {
+            /*FlatRemoteIndex fri = jfac.fromReader(new FileReader(riPath.toFile()), FlatRemoteIndex.class);
+            return new RemoteIndex(fri.lastSyncTimeEpochMillis, fri.lastRevisionId, fri.entryById);*/
+            idx = jfac.fromReader(fr, JsonIndex.class).toRemoteIndex();
+        }
+        log.fine(() -> "Read json index of " + idx.size() + " entries, " + jsonPath.toFile().length() + " bytes in " 
+                            + (System.currentTimeMillis() - start) + " ms");
+        if(!simulation)
+        {
+            IndexFile.write(idx, riPath(), opt("index.compress", Boolean::parseBoolean).orElse(false));
+            Files.move(jsonPath, jsonPath.resolveSibling(jsonPath.getFileName() + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return idx;
+    }
+
     private Path riPath()
+    {
+        Path jgdrive = jgdrive();
+        return jgdrive.resolve("remote_index.bin");
+    }
+
+    private Path journalPath()
+    {
+        Path jgdrive = jgdrive();
+        return jgdrive.resolve("remote_index.journal");
+    }
+
+    private Path statsPath()
+    {
+        Path jgdrive = jgdrive();
+        return jgdrive.resolve("stat_cache.bin");
+    }
+    
+    /**
+     * Downloads are staged on the volume of the home, so that they can be renamed into place.
+     */
+    private Path stagingPath()
+    {
+        Path jgdrive = jgdrive();
+        return jgdrive.resolve("staging");
+    }
+    
+    private Path uploadsPath()
+    {
+        Path jgdrive = jgdrive();
+        return jgdrive.resolve("uploads");
+    }
+    
+    /**
+     * Drops staged downloads and upload sessions not resumed for transfer.stagingMaxAgeDays (default
+     * {@value #STAGING_MAX_AGE_DAYS}, the lifetime of an upload session) and temp files left by interrupted writes.
+     */
+    private void cleanStaging()
+    {
+        long now = System.currentTimeMillis();
+        long maxAge = TimeUnit.DAYS.toMillis(opt("transfer.stagingMaxAgeDays", Long::parseLong).orElse(STAGING_MAX_AGE_DAYS));
+        clean(stagingPath(), "*.part", now - maxAge);
+        clean(uploadsPath(), "*.properties", now - maxAge);
+        clean(jgdrive(), "*.tmp", now - TimeUnit.HOURS.toMillis(1));
+    }
+    
+    private void clean(Path dir, String glob, long before)
+    {
+        if(!Files.isDirectory(dir)) return;
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob))
+        {
+            for(Path p : ds)
+                if(Files.getLastModifiedTime(p).toMillis() < before)
+                {
+                    log.fine("Deleting stale " + p);
+                    Files.deleteIfExists(p);
+                }
+        }
+        catch(IOException e)
+        {
+            log.log(Level.WARNING, "Failed to clean up " + dir, e);
+        }
+    }
+    
+    private Path jsonRiPath()
     {
         Path jgdrive = jgdrive();
         return jgdrive.resolve("remote_index.json");
@@ -193,74 +388,205 @@ public class Driver
         return home.resolve(".jgdrive");
     }
     
-    public Stream<Path> getLocalModifiedFiles(Optional<FileTime> fromTime) throws IOException
+    /**
+     * Compares the home with the index in a single walk of both, by scan.threads (default {@value #SCAN_THREADS}) 
+     * threads, .jgdrive and ignored folders are not descended into.
+     * @param fromTime if present, files modified after it are taken as modified, 
+     *          otherwise the content of files whose stat changed is compared with the synced one
+     * @return the new and modified files, along with the ones in the local index, and the deleted paths
+     */
+    TreeDiff diffLocal(Optional<FileTime> fromTime) throws IOException
+    {
+        Path idxDir = home.relativize(jgdrive());
+        RemoteIndex idx = getRemoteIndex();
+        StatCache sc = stats.get();
+        if(!fromTime.isPresent()) sc.beginScan();
+        IgnoreRules igns = ignores.get();
+        FileTime syncTime = idx.getLastSyncTime();
+        TreeDiff diff = new TreeDiff(home, idx, opt("scan.threads", Integer::parseInt).orElse(SCAN_THREADS),
+                (rel, a) -> rel.equals(idxDir) || igns.prunes(rel),
+                (rel, a, indexed, synced) -> !igns.ignoresFile(rel)
+                                && (fromTime.isPresent() ? a.lastModifiedTime().compareTo(fromTime.get()) > 0 || !indexed
+                                                         : isModified(rel, a, indexed, synced, syncTime, sc)))
+                            .run();
+        li.get().forEach(s -> diff.changed().add(Paths.get(s)));
+        return diff;
+    }
+    
+    /**
+     * Looks at the given paths only, the changes reported by a running {@link Watch}.
+     */
+    public Stream<Path> getLocalModifiedFiles(Set<Path> changed) throws IOException
     {
-        Path idxDir = jgdrive();
         RemoteIndex idx = getRemoteIndex();
-        FileTime lastSyncTime = fromTime.orElseGet(() -> idx.getLastSyncTime());
-        Pattern[] igns = ignores.get();
-        return Stream.concat(li.get().stream().map(s -> Paths.get(s)), 
-                Files.find(home, Integer.MAX_VALUE, 
-                    (p, a) -> !p.startsWith(idxDir) 
-                                && Stream.of(igns).map(Pattern::asPredicate)
-                                				.noneMatch(pr -> pr.test(p.getFileName().toString())
-                                									|| pr.test(home.relativize(p).toString()))
-                                && a.isRegularFile()
-                                && (a.lastModifiedTime().compareTo(lastSyncTime) > 0 || !idx.exists(home.relativize(p))))
-                     .map(p -> home.relativize(p)));
+        StatCache sc = stats.get();
+        IgnoreRules igns = ignores.get();
+        Function<Path, BasicFileAttributes> stat = Try.uncheckFunction(sc::stat);
+        return Stream.concat(li.get().stream().map(s -> Paths.get(s)),
+                changed.parallelStream()
+                    .filter(rel -> !igns.ignores(rel, false))
+                    .filter(rel -> 
+                        {
+                            BasicFileAttributes a = stat.apply(rel);
+                            return a != null && a.isRegularFile() && isModified(rel, a, idx, sc);
+                        }));
+    }
+    
+    /**
+     * @return the local changes kept by a running {@link Watch}, none if there is no watch
+     */
+    Optional<WatchState> getWatchState() throws IOException
+    {
+        return WatchState.read(jgdrive());
+    }
+    
+    /**
+     * Lets the watch forget the changes up to the given one, once they are synced.
+     */
+    void watchSynced(long seq) throws IOException
+    {
+        if(!simulation && seq > 0) WatchState.ack(jgdrive(), seq);
+    }
+    
+    private boolean isModified(Path rel, BasicFileAttributes a, RemoteIndex idx, StatCache sc)
+    {
+        return isModified(rel, a, idx.exists(rel), idx.getMeta(rel), idx.getLastSyncTime(), sc);
+    }
+    
+    private boolean isModified(Path rel, BasicFileAttributes a, boolean indexed, Optional<FileMeta> meta, 
+                                    FileTime syncTime, StatCache sc)
+    {
+        sc.seen(rel);
+        if(!indexed) return true;
+        try
+        {
+            Optional<String> synced = meta.map(m -> m.getMd5Checksum());
+            if(synced.isPresent())
+                return !synced.get().equalsIgnoreCase(DatatypeConverter.printHexBinary(sc.md5(rel, a)));
+            //no synced md5 in the index, the stat recorded at the last sync or else the sync time have to do
+            if(sc.isUnchanged(rel, a)) return false;
+            if(sc.contains(rel) || a.lastModifiedTime().compareTo(syncTime) > 0) return true;
+            sc.record(rel, a);
+            return false;
+        }
+        catch(IOException e)
+        {
+            throw new IORtException(e);
+        }
+    }
+    
+    /**
+     * @return true if the local file has the size and md5 of the remote one, its stat is then recorded as synced
+     */
+    private boolean adopt(File file, Path rel) throws IOException
+    {
+        StatCache sc = stats.get();
+        BasicFileAttributes attrs = sc.stat(rel);
+        if(attrs == null || !attrs.isRegularFile() || file.getMd5Checksum() == null
+                || file.getFileSize() != null && file.getFileSize() != attrs.size()) return false;
+        //hashing records the stat along with the md5
+        if(!file.getMd5Checksum().equalsIgnoreCase(DatatypeConverter.printHexBinary(sc.md5(rel, attrs)))) return false;
+        info("Adopting local '" + rel + "'", ", id=" + file.getId());
+        return true;
+    }
+    
+    StatCache getStatCache()
+    {
+        return stats.get();
+    }
+    
+    /**
+     * Hashes the local files on hash.threads (default {@value #HASH_THREADS}) workers, the ones gone by then are left out.
+     * @param worth the stat of the files to hash
+     * @return the md5 of the files, in lower case hex
+     */
+    Map<Path, String> md5Hex(Stream<Path> rels, Predicate<BasicFileAttributes> worth) throws IOException
+    {
+        StatCache sc = stats.get();
+        Map<Path, String> md5s = new ConcurrentHashMap<>();
+        hashes.get().run(rels, rel -> 
+            {
+                BasicFileAttributes attrs = sc.stat(rel);
+                if(attrs == null || !attrs.isRegularFile() || !worth.test(attrs)) return;
+                try
+                {
+                    md5s.put(rel, DatatypeConverter.printHexBinary(sc.md5(rel, attrs)).toLowerCase());
+                }
+                catch(NoSuchFileException e)
+                {
+                    log.fine(() -> "Deleted before it was hashed: " + rel);
+                }
+            });
+        return md5s;
     }
     
     public Stream<Entry<File, Path>> downloadByFileIds(Stream<String> fileIds) throws IOException
     {
-        ArrayList<File> res = new ArrayList<>(); 
-        BatchRequest batch = drive.get().batch();
-        final Callback<File> cb = Callback.make((f,h) -> res.add(f));
-        
         com.google.api.services.drive.Drive.Files files = drive.get().files();
-        fileIds.forEach(Try.uncheck(f -> 
-            batch.queue(files.get(f).setFields(FILE_ATTRS).buildHttpRequest(), File.class, GoogleJsonError.class, cb)));
-        if(batch.size() > 0) batch.execute();
+        List<File> res = succeeded(batches.get().execute(fileIds, f -> files.get(f).setFields(FILE_ATTRS)), "get")
+                            .collect(Collectors.toList());
         
         return Stream.concat(
                 res.stream().filter(f -> f.getMimeType().equals(MIME_TYPE_DIR)).map(f -> new SimpleImmutableEntry<>(f, null)),
-                downloadFiles(res.stream().filter(f -> !f.getMimeType().equals(MIME_TYPE_DIR))));
-    }
-    
-    public Stream<Entry<File, Path>> downloadFiles(Stream<File> files) throws IOException
-    {
-        return 
-        files
-        	.filter(f -> !needsExport(f))
-        	.map(Try.uncheckFunction(f ->  
-             {
-                Path path = Files.createTempFile("jgdrive-", "-" + f.getId() + "-" + f.getTitle());
-                log.fine("Downloading " + f.getId() + " to " + path + " ....");
-                // uses alt=media query parameter to request content
-                ChecksumInputStream remStream = new ChecksumInputStream(drive.get().files().get(f.getId()).executeMediaAsInputStream());
-                long size = Files.copy(remStream, path, StandardCopyOption.REPLACE_EXISTING);
-                remStream.close();
-                if(!f.getMd5Checksum().equals(remStream.getHexChecksum()))
-                    throw new IOException("Checksum verification failed for " 
-                                + "id=" + f.getId() + ", title=" + f.getTitle() + ", expected=" + f.getMd5Checksum() + ", actual=" + remStream.getHexChecksum());
-                Files.setLastModifiedTime(path, FileTime.fromMillis(f.getModifiedDate().getValue()));
-                log.fine("Downloaded " + f.getId() + " to " + path + ", size=" + size + " bytes");
-                return new SimpleImmutableEntry<>(f, path);
-             }));
+                res.stream().filter(f -> !f.getMimeType().equals(MIME_TYPE_DIR) && !needsExport(f))
+                        .map(Try.uncheckFunction(f -> new SimpleImmutableEntry<>(f, download(f)))));
+    }
+    
+    /**
+     * Downloads the files to their paths relative to home, on at most transfer.downloadThreads (default 
+     * {@value #DOWNLOAD_THREADS}) workers. Each worker verifies and moves into place the file it downloaded.
+     */
+    public void downloadFiles(Stream<? extends Entry<File, Path>> files) throws IOException
+    {
+        downloadFiles(files, false, f -> {});
+    }
+    
+    /**
+     * @param adopt if local files with the content of the remote file are to be kept instead of downloaded, 
+     *              they are hashed by the download workers
+     * @param downloaded called by the worker once the file is in place
+     */
+    public void downloadFiles(Stream<? extends Entry<File, Path>> files, boolean adopt, Try.ConsumerEx<File> downloaded) 
+                                                                                                    throws IOException
+    {
+        downloads.get().run(files.filter(e -> !needsExport(e.getKey())), e -> 
+            {
+                if(adopt && adopt(e.getKey(), e.getValue()))
+                {
+                    downloaded.accept(e.getKey());
+                    return;
+                }
+                Path tmp = download(e.getKey());
+                Path lp = home.resolve(e.getValue());
+                if(lp.getParent() != null) Files.createDirectories(lp.getParent());
+                info("Updating local '" + e.getValue() + "'", ", id=" + e.getKey().getId());
+                IndexFile.move(tmp, lp);
+                stats.get().synced(e.getValue(), null, e.getKey().getMd5Checksum());
+                downloaded.accept(e.getKey());
+            });
+    }
+    
+    private Path download(File f) throws IOException
+    {
+        log.fine("Downloading " + f.getId() + " ....");
+        return ResumableDownload.download(drive.get(), f, stagingPath(), 
+                                    opt("transfer.downloadRetries", Integer::parseInt).orElse(DOWNLOAD_RETRIES));
     }    
     
-	public void updateFile(String fileId, Path localPath) throws IOException
+	public File updateFile(String fileId, Path localPath) throws IOException
     {
         info("Updating remote '" + localPath + "'", " with id = " + fileId);
         if(!simulation)
-        {
-            ChecksumInputStream fileStream = new ChecksumInputStream(Files.newInputStream(localPath, StandardOpenOption.READ));
-            InputStreamContent mediaContent = new InputStreamContent(mime(localPath), fileStream);
-            // Send the request to the API.
-            File file = drive.get().files().update(fileId, null, mediaContent).setFields(FILE_ATTRS).execute();
-            if(!fileStream.getHexChecksum().equalsIgnoreCase(file.getMd5Checksum()))
-                throw new IOException("Failed to verify md5 checksum for id=" + file.getId() + ", path=" + localPath
-                                    + ", expected=" + fileStream.getHexChecksum() + ", found=" + file.getMd5Checksum());
-        }
+            return upload(fileId, null, localPath);
+        else
+            return new File().setId(fileId);
+    }
+    
+    private File upload(String fileId, File metadata, Path localPath) throws IOException
+    {
+        return new ResumableUpload(drive.get(), fileId, metadata, mime(localPath), localPath, FILE_ATTRS, uploadsPath(), 
+                                    opt("transfer.uploadChunkSize", Integer::parseInt).orElse(UPLOAD_CHUNK_SIZE))
+                    .run(opt("transfer.uploadRetries", Integer::parseInt).orElse(UPLOAD_RETRIES));
     }
     
     public Map<Path, File> mkdirs(Stream<Path> newDirs, Function<Path, Optional<String>> pathParentIdMap) throws IOException
@@ -307,31 +633,24 @@ public class Driver
         info("Adding remote '" + localPath + "'", " with parent " + body.getParents());
         
         if(!simulation)
-        {
-            ChecksumInputStream fileStream = new ChecksumInputStream(Files.newInputStream(localPath, StandardOpenOption.READ));
-            InputStreamContent mediaContent = new InputStreamContent(body.getMimeType(), fileStream);
-            File file = drive.get().files().insert(body, mediaContent).setFields(FILE_ATTRS).execute();
-            if(!fileStream.getHexChecksum().equalsIgnoreCase(file.getMd5Checksum()))
-                throw new IOException("Failed to verify md5 checksum for id=" + file.getId() + ", path=" + localPath
-                                    + ", expected=" + fileStream.getHexChecksum() + ", found=" + file.getMd5Checksum());
-            return file;
-        }
+            return upload(null, body, localPath);
         else
             return body.setId(String.valueOf(new Random().nextInt()));
     }
 
     public void trashFiles(Stream<String> fileIds) throws IOException
     {
-        BatchRequest batch = drive.get().batch();
-        final Callback<File> cb = Callback.make((f,h) -> {});
-        
+        if(simulation)
+        {
+            fileIds.forEach(fileId -> log.info("Trashing remote '" + fileId + "'"));
+            return;
+        }
         com.google.api.services.drive.Drive.Files files = drive.get().files();
-        fileIds.forEach(Try.uncheck(fileId -> 
+        succeeded(batches.get().execute(fileIds, fileId -> 
         {
             log.info("Trashing remote '" + fileId + "'");
-            batch.queue(files.trash(fileId).setFields(FILE_ATTRS).buildHttpRequest(), File.class, GoogleJsonError.class, cb);
-        }));
-        if(!simulation && batch.size() > 0) batch.execute();
+            return files.trash(fileId).setFields(FILE_ATTRS);
+        }), "trash");
     }
     
     private static String mime(Path p)
@@ -407,90 +726,102 @@ public class Driver
         }, false);
     }
 
+    /**
+     * @return the files that could be read, files that could not are logged and left out
+     */
     public Map<String, File> getFiles(Stream<String> fileIds) throws IOException
     {
         HashMap<String, File> res = new HashMap<>(); 
-        BatchRequest batch = drive.get().batch();
-        final Callback<File> cb = Callback.make((f,h) -> res.put(f.getId(), f));
-        
         com.google.api.services.drive.Drive.Files files = drive.get().files();
-        fileIds.forEach(Try.uncheck(f -> 
-            batch.queue(files.get(f).setFields(FILE_ATTRS).buildHttpRequest(), File.class, GoogleJsonError.class, cb)));
-        if(batch.size() > 0) batch.execute();
+        batches.get().execute(fileIds, f -> files.get(f).setFields(FILE_ATTRS)).forEach((id, t) ->
+        {
+            if(t.isSuccessful()) res.put(id, t.get());
+            else log.warning("Failed to get '" + id + "': " + t.getFailure().getMessage());
+        });
         return res;
     }
     
-    public Stream<Supplier<List<File>>> getAllFiles() throws IOException
-    {
-        return StreamSupport.stream(
-        new Spliterators.AbstractSpliterator<Supplier<List<File>>>(Long.MAX_VALUE, Spliterator.SIZED)
+    /**
+     * The files owned by the user, from the page of the given token on (null for the first page). 
+     * listing.prefetchPages (default {@value #LISTING_PREFETCH_PAGES}) pages are read ahead, the stream must be closed 
+     * to stop the read-ahead.
+     */
+    public Stream<FileList> listFiles(String pageToken) throws IOException
+    {
+        Drive.Files.List request = drive.get().files().list()
+                .setQ("trashed = false and 'me' in owners and mimeType != '" + MIME_TYPE_DIR + "'")
+                .setFields("nextPageToken,items(" + FILE_ATTRS + ")")
+                .setMaxResults(400)
+                .setPageToken(pageToken);
+        boolean[] done = {false};
+        return Prefetch.stream("listing", opt("listing.prefetchPages", Integer::parseInt).orElse(LISTING_PREFETCH_PAGES), () ->
         {
-            final Drive.Files.List request = drive.get().files().list()
-                    .setQ("trashed = false and 'me' in owners and mimeType != '" + MIME_TYPE_DIR + "'")
-                    .setFields("nextPageToken,items(" + FILE_ATTRS + ")")
-                    .setMaxResults(400);
-            
-            @Override
-            public boolean tryAdvance(Consumer<? super Supplier<List<File>>> action)
-            {       //first request                         or needs another request
-                if(request.getLastResponseHeaders() == null || request.getPageToken() != null)
-                {
-                    action.accept(Try.uncheck(() -> 
-                                {
-                                    FileList list = request.execute();
-                                    if(list.getNextPageToken() != null && list.getNextPageToken().length() > 0)
-                                    {
-                                        log.fine(() -> "getAllFiles() Reading token " + list.getNextPageToken());
-                                        request.setPageToken(list.getNextPageToken());
-                                    }
-                                    else
-                                    {
-                                        request.setPageToken(null);
-                                        log.fine("getAllFiles() ..done reading all tokens");
-                                    }
-                                    return list.getItems();
-                                }));
-                    return true;
-                }
-                return false;
+            if(done[0]) return null;
+            FileList list = request.execute();
+            if(list.getNextPageToken() != null && list.getNextPageToken().length() > 0)
+            {
+                log.fine(() -> "listFiles() Reading token " + list.getNextPageToken());
+                request.setPageToken(list.getNextPageToken());
             }
-        }, false);
+            else
+            {
+                done[0] = true;
+                log.fine("listFiles() ..done reading all tokens");
+            }
+            return list;
+        });
     }
     
-    public void patchFiles(Stream<File> files) throws IOException
+    /**
+     * @return a file of the given name in .jgdrive
+     */
+    Path stateFile(String name)
     {
-        BatchRequest batch = drive.get().batch();
-        final Callback<Void> cb = Callback.make((v,h) -> {});
-
-        com.google.api.services.drive.Drive.Files dfiles = drive.get().files();
-        files.forEach(Try.uncheck(f -> 
-            {
-                log.info("Updating remote meta-data of '" + f.getId() + "'");
-                batch.queue(dfiles.patch(f.getId(), f).setFields(FILE_ATTRS).buildHttpRequest(), Void.class, GoogleJsonError.class, cb);
-            }));
-        if(!simulation && batch.size() > 0) batch.execute();
+        return jgdrive().resolve(name);
     }
     
-    private interface Callback<T> extends BatchCallback<T, GoogleJsonError> 
+    public List<File> patchFiles(Stream<File> files) throws IOException
     {
-        @Override
-        default void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException
+        Map<String, File> patches = files.collect(Collectors.toMap(f -> f.getId(), f -> f, (a, b) -> b, LinkedHashMap::new));
+        if(simulation)
         {
-            throw new HttpResponseException.Builder(e.getCode(), e.getMessage(), responseHeaders)
-                                                                        .setContent(e.toPrettyString()).build();
+            patches.keySet().forEach(id -> log.info("Updating remote meta-data of '" + id + "'"));
+            return new ArrayList<>();
         }
-        
-        public static <T> Callback<T> make(BiConsumer<T, HttpHeaders> func)
-        {
-            return new Callback<T>()
+        com.google.api.services.drive.Drive.Files dfiles = drive.get().files();
+        return succeeded(batches.get().execute(patches.keySet().stream(), id -> 
             {
-                @Override
-                public void onSuccess(T t, HttpHeaders responseHeaders)
-                {
-                    func.accept(t, responseHeaders);
-                }
-            };
-        }
+                log.info("Updating remote meta-data of '" + id + "'");
+                return dfiles.patch(id, patches.get(id)).setFields(FILE_ATTRS);
+            }), "update").collect(Collectors.toList());
+    }
+    
+    /**
+     * Runs batch.size (at most {@value BatchExecutor#MAX_BATCH}) calls per batch, batch.threads (default {@value #BATCH_THREADS}) 
+     * batches at a time, calls hitting a rate limit are retried up to batch.retries (default {@value #BATCH_RETRIES}) times.
+     */
+    private BatchExecutor makeBatchExecutor()
+    {
+        return new BatchExecutor(drive.get(), 
+                        new TransferPool("batch", opt("batch.threads", Integer::parseInt).orElse(BATCH_THREADS)), limiter.get(),
+                        opt("batch.size", Integer::parseInt).orElse(BatchExecutor.MAX_BATCH),
+                        opt("batch.retries", Integer::parseInt).orElse(BATCH_RETRIES));
+    }
+    
+    /**
+     * Every call is given its chance before the first failure is thrown, so that one bad file does not hold up the others.
+     */
+    private static <T> Stream<T> succeeded(Map<String, Try<T, IOException>> results, String action) throws IOException
+    {
+        IOException failure = null;
+        for(Entry<String, Try<T, IOException>> e : results.entrySet())
+            if(!e.getValue().isSuccessful())
+            {
+                log.warning("Failed to " + action + " '" + e.getKey() + "': " + e.getValue().getFailure().getMessage());
+                if(failure == null) failure = e.getValue().getFailure();
+            }
+        if(failure != null) throw failure;
+        return results.values().stream().map(t -> t.get());
     }
     
     private void info(String info, String fine)
@@ -557,14 +888,13 @@ public class Driver
         return Stream.of(dflts);
     }
     
-    private Pattern[] pat(Stream<String> pats)
+    private Optional<Properties> readOpts()
     {
-    	return pats.map(Pattern::compile).toArray(Pattern[]::new);
+        return readOpts(jgdrive());
     }
     
-    private Optional<Properties> readOpts()
+    static Optional<Properties> readOpts(Path jgdrive)
     {
-        Path jgdrive = jgdrive();
         Path ignPath = jgdrive.resolve("opts.properties");
         if (Files.exists(ignPath))
             try(InputStream is = Files.newInputStream(ignPath, StandardOpenOption.READ))
@@ -585,7 +915,12 @@ public class Driver
     	return opts.get().flatMap(p -> Optional.ofNullable(p.getProperty(name))).map(to);
     }
 
-	Supplier<Pattern[]> getRemIgnores() 
+	Supplier<IgnoreRules> getIgnores() 
+	{
+		return ignores;
+	}
+	
+	Supplier<IgnoreRules> getRemIgnores() 
 	{
 		return remIgnores;
 	}
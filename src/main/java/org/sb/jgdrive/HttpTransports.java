@@ -0,0 +1,136 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.util.SslUtils;
+
+/**
+ * Makes the transport selected by http.transport in opts.properties: 'net' (the default) for HttpURLConnection,
+ * or 'apache' for a pooled Apache http client. Either keeps up to http.maxConnectionsPerRoute
+ * (default {@value #MAX_CONNECTIONS_PER_ROUTE}) connections to drive alive for reuse, the apache one also takes
+ * http.maxConnections, http.keepAliveMillis and http.socketBufferBytes.
+ */
+final class HttpTransports
+{
+    private static final Logger log = Logger.getLogger(HttpTransports.class.getPackage().getName());
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 16;
+    private static final int MAX_CONNECTIONS = 64;
+    private static final long KEEP_ALIVE_MILLIS = 60000;
+
+    private HttpTransports()
+    {
+    }
+
+    static HttpTransport make(Optional<Properties> opts) throws IOException, GeneralSecurityException
+    {
+        String transport = opt(opts, "http.transport", String::trim).orElse("net");
+        int perRoute = opt(opts, "http.maxConnectionsPerRoute", Integer::parseInt).orElse(MAX_CONNECTIONS_PER_ROUTE);
+        switch(transport)
+        {
+            case "net":
+                //the size of HttpURLConnection's keep-alive cache, per host, read when the first connection is made
+                if(System.getProperty("http.maxConnections") == null)
+                    System.setProperty("http.maxConnections", String.valueOf(perRoute));
+                return GoogleNetHttpTransport.newTrustedTransport();
+            case "apache":
+                return apache(opts, perRoute);
+            default:
+                throw new IllegalStateException("Unknown http.transport '" + transport + "', expected 'net' or 'apache'");
+        }
+    }
+
+    /**
+     * The transport of this version of the google http client works with the pre 4.3 client api only, it reads and 
+     * sets the params of the client. Its classes are named in full, the suppression does not reach the imports.
+     */
+    @SuppressWarnings("deprecation")
+    private static HttpTransport apache(Optional<Properties> opts, int perRoute) throws IOException, GeneralSecurityException
+    {
+        SSLContext ssl = SslUtils.getTlsSslContext();
+        SslUtils.initSslContext(ssl, GoogleUtils.getCertificateTrustStore(), SslUtils.getPkixTrustManagerFactory());
+        //the buffers are sized before connecting, so that the tcp window can scale to them
+        int buffer = opt(opts, "http.socketBufferBytes", Integer::parseInt).orElse(0);
+        org.apache.http.conn.scheme.SchemeRegistry registry = new org.apache.http.conn.scheme.SchemeRegistry();
+        registry.register(new org.apache.http.conn.scheme.Scheme("http", 80, 
+                                    new org.apache.http.conn.scheme.PlainSocketFactory()
+            {
+                @Override
+                public Socket createSocket(org.apache.http.params.HttpParams params)
+                {
+                    return sized(super.createSocket(params), buffer);
+                }
+            }));
+        registry.register(new org.apache.http.conn.scheme.Scheme("https", 443, 
+                                    new org.apache.http.conn.ssl.SSLSocketFactory(ssl)
+            {
+                @Override
+                public Socket createSocket(org.apache.http.params.HttpParams params) throws IOException
+                {
+                    return sized(super.createSocket(params), buffer);
+                }
+            }));
+        org.apache.http.impl.conn.PoolingClientConnectionManager cm = 
+                                    new org.apache.http.impl.conn.PoolingClientConnectionManager(registry);
+        cm.setMaxTotal(Math.max(perRoute, opt(opts, "http.maxConnections", Integer::parseInt).orElse(MAX_CONNECTIONS)));
+        cm.setDefaultMaxPerRoute(perRoute);
+
+        org.apache.http.params.HttpParams params = new org.apache.http.params.BasicHttpParams();
+        org.apache.http.params.HttpConnectionParams.setTcpNoDelay(params, true);
+        org.apache.http.params.HttpConnectionParams.setSoKeepalive(params, true);
+        //a pooled connection the server has closed is found out before it is reused
+        org.apache.http.params.HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        if(buffer > 0) org.apache.http.params.HttpConnectionParams.setSocketBufferSize(params, buffer);
+
+        org.apache.http.impl.client.DefaultHttpClient client = new org.apache.http.impl.client.DefaultHttpClient(cm, params);
+        long keepAlive = opt(opts, "http.keepAliveMillis", Long::parseLong).orElse(KEEP_ALIVE_MILLIS);
+        //the server may close an idle connection earlier than we would
+        client.setKeepAliveStrategy((resp, ctx) ->
+            {
+                long server = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(resp, ctx);
+                return server > 0 ? Math.min(server, keepAlive) : keepAlive;
+            });
+        //retries are left to the google http client, as with the other transport
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        client.setRoutePlanner(new org.apache.http.impl.conn.ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+        log.fine(() -> "Using a pooled apache http client, " + perRoute + " connections per route, kept alive for "
+                            + keepAlive + " ms");
+        return new ApacheHttpTransport(client);
+    }
+
+    private static Socket sized(Socket socket, int buffer)
+    {
+        if(buffer > 0)
+            try
+            {
+                socket.setReceiveBufferSize(buffer);
+                socket.setSendBufferSize(buffer);
+            }
+            catch(SocketException e)
+            {
+                log.fine(() -> "Could not set the socket buffers to " + buffer + " bytes: " + e);
+            }
+        return socket;
+    }
+
+    private static <T> Optional<T> opt(Optional<Properties> opts, String name, Function<String, T> to)
+    {
+        return opts.flatMap(p -> Optional.ofNullable(p.getProperty(name))).map(to);
+    }
+}
@@ -0,0 +1,115 @@
+package org.sb.jgdrive;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The rules of an ignore file, one regular expression per line, found anywhere in the name or in the path relative
+ * to the home. As in .gitignore, a rule ending with '/' is for folders only, blank lines and lines starting with
+ * '#' are skipped. A folder that is ignored is ignored with all of its content, the walk need not go into it.
+ * <p>
+ * The rules are merged into a single pattern per kind, so a path is matched once against all of them,
+ * rules with back references are kept apart since their group numbers would not survive the merge,
+ * and all of them are when the merged pattern does not compile.
+ */
+final class IgnoreRules
+{
+    static final IgnoreRules NONE = new IgnoreRules(new ArrayList<>(), new ArrayList<>());
+
+    private final Pattern[] any;
+    private final Pattern[] dirs;
+    private final Map<Path, Boolean> ignoredDirs = new ConcurrentHashMap<>();
+
+    private IgnoreRules(List<String> any, List<String> dirs)
+    {
+        this.any = merge(any);
+        this.dirs = merge(dirs);
+    }
+
+    static IgnoreRules compile(Stream<String> lines)
+    {
+        List<String> any = new ArrayList<>(), dirs = new ArrayList<>();
+        lines.filter(l -> !l.trim().isEmpty() && !l.startsWith("#")).forEach(l ->
+            {
+                boolean dir = l.endsWith("/") && !l.endsWith("\\/");
+                String regex = dir ? l.substring(0, l.length() - 1) : l;
+                //a bad rule is reported as itself, not as part of the merged pattern
+                Pattern.compile(regex);
+                (dir ? dirs : any).add(regex);
+            });
+        return any.isEmpty() && dirs.isEmpty() ? NONE : new IgnoreRules(any, dirs);
+    }
+
+    private static Pattern[] merge(List<String> regexes)
+    {
+        List<String> apart = regexes.stream().filter(r -> r.matches(".*\\\\([1-9]|k<).*")).collect(Collectors.toList());
+        List<String> merged = regexes.stream().filter(r -> !apart.contains(r)).collect(Collectors.toList());
+        Stream<Pattern> together;
+        try
+        {
+            together = merged.isEmpty() ? Stream.empty()
+                                        : Stream.of(Pattern.compile(merged.stream().collect(Collectors.joining(")|(?:", "(?:", ")"))));
+        }
+        catch(PatternSyntaxException e)
+        {
+            //rules that are fine alone can clash once merged, e.g. two groups of the same name
+            together = merged.stream().map(Pattern::compile);
+        }
+        return Stream.concat(together, apart.stream().map(Pattern::compile)).toArray(Pattern[]::new);
+    }
+
+    boolean isEmpty()
+    {
+        return this == NONE;
+    }
+
+    /**
+     * @param rel the path of a file relative to the home, its folders are not looked at
+     */
+    boolean ignoresFile(Path rel)
+    {
+        return matches(any, rel);
+    }
+
+    /**
+     * @param rel the path of a folder relative to the home, its parent folders are not looked at
+     * @return true if the folder is ignored along with its content
+     */
+    boolean prunes(Path rel)
+    {
+        return matches(any, rel) || matches(dirs, rel);
+    }
+
+    /**
+     * @return true if the path or one of the folders it is in is ignored
+     */
+    boolean ignores(Path rel, boolean dir)
+    {
+        if(isEmpty() || rel == null) return false;
+        Path parent = rel.getParent();
+        if(parent != null)
+        {
+            //not computeIfAbsent, which cannot recurse into the same map
+            Boolean ign = ignoredDirs.get(parent);
+            if(ign == null) ignoredDirs.put(parent, ign = ignores(parent, true));
+            if(ign) return true;
+        }
+        return dir ? prunes(rel) : ignoresFile(rel);
+    }
+
+    private static boolean matches(Pattern[] patterns, Path rel)
+    {
+        if(patterns.length == 0 || rel.getNameCount() == 0) return false;
+        String name = rel.getFileName().toString(), path = rel.toString();
+        for(Pattern p : patterns)
+            if(p.matcher(name).find() || p.matcher(path).find()) return true;
+        return false;
+    }
+}
@@ -0,0 +1,385 @@
+package org.sb.jgdrive;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary snapshot of a {@link RemoteIndex}.
+ * <pre>
+ * header  : magic "JGDI" (int), version (short), flags (short), payload length (long)
+ * payload : lastSyncTimeEpochMillis (long), lastRevisionId (long),
+ *           string count (varint), strings (varint length + UTF-8 bytes),
+ *           node count (varint), nodes in pre-order (parent index + 1, id string, title string as varints,
+ *           meta flags (byte) followed, when set, by md5 (16 bytes, if flagged), size + 1 (varlong),
+ *           modified time (long), version + 1 (varlong))
+ * </pre>
+ * Version 1 has no meta flags.
+ * The payload is deflated when {@link #FLAG_DEFLATE} is set, the payload length is always the inflated length.
+ */
+final class IndexFile
+{
+    private static final Logger log = Logger.getLogger(IndexFile.class.getPackage().getName());
+    private static final int MAGIC = 0x4A474449; // JGDI
+    private static final short VERSION = 2;
+    private static final short FLAG_DEFLATE = 1;
+    private static final byte META = 1;
+    private static final byte META_MD5 = 2;
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 8;
+
+    private IndexFile()
+    {
+    }
+
+    static RemoteIndex read(Path path) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = fc.size();
+            MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(mbb.remaining() < HEADER_SIZE || mbb.getInt() != MAGIC)
+                throw new IOException("The file " + path + " is not an index file");
+            short version = mbb.getShort();
+            if(version != VERSION && version != 1)
+                throw new IOException("Unsupported index version " + version + " in " + path);
+            short flags = mbb.getShort();
+            long length = mbb.getLong();
+            ByteBuffer payload = (flags & FLAG_DEFLATE) != 0 ? inflate(mbb, length) : mbb.slice();
+            RemoteIndex ri = readPayload(payload, version);
+            log.fine(() -> "Read index of " + ri.size() + " entries, " + size + " bytes from " + path
+                                + " in " + (System.currentTimeMillis() - start) + " ms");
+            return ri;
+        }
+    }
+
+    static void write(RemoteIndex ri, Path path, boolean deflate) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        Buf payload = writePayload(ri);
+
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try
+        {
+            try(FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE))
+            {
+                OutputStream os = new BufferedOutputStream(Channels.newOutputStream(fc), 1 << 16);
+                DataOutputStream header = new DataOutputStream(os);
+                header.writeInt(MAGIC);
+                header.writeShort(VERSION);
+                header.writeShort(deflate ? FLAG_DEFLATE : 0);
+                header.writeLong(payload.size);
+                if(deflate)
+                {
+                    DeflaterOutputStream dos = new DeflaterOutputStream(os, new Deflater(Deflater.BEST_SPEED), 1 << 16);
+                    payload.writeTo(dos);
+                    dos.finish();
+                }
+                else
+                    payload.writeTo(os);
+                os.flush();
+                fc.force(true);
+            }
+            move(tmp, path);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+        log.fine(() -> "Wrote index of " + ri.size() + " entries to " + path + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static void move(Path tmp, Path path) throws IOException
+    {
+        try
+        {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            log.fine("Atomic move not supported for " + path);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Buf writePayload(RemoteIndex ri)
+    {
+        //ids are unique, only titles are worth de-duplicating
+        HashMap<String, Integer> titleIdx = new HashMap<>();
+        Buf strs = new Buf(1 << 16);
+        Buf nodes = new Buf(1 << 16);
+        int count = 0, strCount = 0;
+        CompactTree tree = ri.tree();
+        int[] pending = new int[64], parents = new int[64];
+        int top = 0;
+        pending[top] = tree.root();
+        parents[top++] = -1;
+        while(top > 0)
+        {
+            int n = pending[--top];
+            int me = count++;
+            nodes.putVarInt(parents[top] + 1);
+            nodes.putVarInt(strs.putString(tree.id(n), ++strCount));
+            String t = tree.title(n);
+            Integer title = titleIdx.get(t);
+            if(title == null) titleIdx.put(t, title = strs.putString(t, ++strCount));
+            nodes.putVarInt(title);
+            byte[] md5 = tree.md5(n);
+            nodes.putByte((byte)(tree.hasMeta(n) ? META | (md5 != null ? META_MD5 : 0) : 0));
+            if(tree.hasMeta(n))
+            {
+                if(md5 != null) nodes.put(md5, 0, md5.length);
+                nodes.putVarLong(tree.size(n) + 1);
+                nodes.putLong(tree.modified(n));
+                nodes.putVarLong(tree.version(n) + 1);
+            }
+            for(int ch = tree.firstChild(n); ch != CompactTree.NONE; ch = tree.nextSibling(ch))
+            {
+                if(top == pending.length)
+                {
+                    pending = Arrays.copyOf(pending, top << 1);
+                    parents = Arrays.copyOf(parents, top << 1);
+                }
+                pending[top] = ch;
+                parents[top++] = me;
+            }
+        }
+
+        Buf out = new Buf(16 + 10 + strs.size + nodes.size);
+        out.putLong(ri.getLastSyncTime().toMillis());
+        out.putLong(ri.getLastRevisionId());
+        out.putVarInt(strCount);
+        out.put(strs.bytes, 0, strs.size);
+        out.putVarInt(count);
+        out.put(nodes.bytes, 0, nodes.size);
+        return out;
+    }
+
+    private static RemoteIndex readPayload(ByteBuffer in, short version) throws IOException
+    {
+        long lastSyncTime = in.getLong();
+        long lastRevisionId = in.getLong();
+
+        byte[][] strings = new byte[readVarInt(in) + 1][];
+        strings[0] = new byte[0];
+        for(int i = 1; i < strings.length; i++)
+        {
+            strings[i] = new byte[readVarInt(in)];
+            in.get(strings[i]);
+        }
+
+        int[] nodes = new int[readVarInt(in)];
+        if(nodes.length == 0) throw new IOException("The index has no root");
+        CompactTree tree = new CompactTree(nodes.length);
+        for(int i = 0; i < nodes.length; i++)
+        {
+            int parent = readVarInt(in) - 1;
+            nodes[i] = tree.add(strings[readVarInt(in)], strings[readVarInt(in)], parent >= 0 ? nodes[parent] : CompactTree.NONE);
+            byte meta = version > 1 ? in.get() : 0;
+            if((meta & META) != 0)
+            {
+                byte[] md5 = null;
+                if((meta & META_MD5) != 0) in.get(md5 = new byte[16]);
+                tree.setMeta(nodes[i], md5, readVarLong(in) - 1, in.getLong(), readVarLong(in) - 1);
+            }
+        }
+        tree.setRoot(nodes[0]);
+        return new RemoteIndex(lastSyncTime, lastRevisionId, tree);
+    }
+
+    private static ByteBuffer inflate(ByteBuffer in, long length) throws IOException
+    {
+        if(length > Integer.MAX_VALUE) throw new IOException("Index payload is too large: " + length);
+        byte[] out = new byte[(int)length];
+        try(InputStream is = new InflaterInputStream(new BufferInputStream(in), new Inflater(), 1 << 16))
+        {
+            int off = 0, r;
+            while(off < out.length && (r = is.read(out, off, out.length - off)) != -1) off += r;
+            if(off != out.length) throw new IOException("Index payload is truncated, expected " + length + " found " + off);
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    static String readString(ByteBuffer in)
+    {
+        byte[] b = new byte[readVarInt(in)];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static int readVarInt(ByteBuffer in)
+    {
+        int v = 0;
+        for(int shift = 0; ; shift += 7)
+        {
+            byte b = in.get();
+            v |= (b & 0x7F) << shift;
+            if(b >= 0) return v;
+        }
+    }
+
+    static long readVarLong(ByteBuffer in)
+    {
+        long v = 0;
+        for(int shift = 0; ; shift += 7)
+        {
+            byte b = in.get();
+            v |= (long)(b & 0x7F) << shift;
+            if(b >= 0) return v;
+        }
+    }
+
+    private static class BufferInputStream extends InputStream
+    {
+        private final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read()
+        {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if(!buf.hasRemaining()) return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
+
+    /**
+     * Unsynchronized growable byte array, the payload is built byte by byte.
+     */
+    static class Buf
+    {
+        private byte[] bytes;
+        private int size;
+
+        Buf(int capacity)
+        {
+            bytes = new byte[capacity];
+        }
+
+        private void ensure(int len)
+        {
+            if(size + len > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, size + len));
+        }
+
+        void put(byte[] b, int off, int len)
+        {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        void putByte(byte b)
+        {
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        void putVarInt(int v)
+        {
+            ensure(5);
+            while((v & ~0x7F) != 0)
+            {
+                bytes[size++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte)v;
+        }
+
+        void putVarLong(long v)
+        {
+            ensure(10);
+            while((v & ~0x7FL) != 0)
+            {
+                bytes[size++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte)v;
+        }
+
+        void putShort(short v)
+        {
+            ensure(2);
+            bytes[size++] = (byte)(v >>> 8);
+            bytes[size++] = (byte)v;
+        }
+
+        void putInt(int v)
+        {
+            ensure(4);
+            for(int shift = 24; shift >= 0; shift -= 8)
+                bytes[size++] = (byte)(v >>> shift);
+        }
+
+        void putLong(long v)
+        {
+            ensure(8);
+            for(int shift = 56; shift >= 0; shift -= 8)
+                bytes[size++] = (byte)(v >>> shift);
+        }
+
+        int putString(String str, int ref)
+        {
+            putString(str);
+            return ref;
+        }
+
+        void putString(String str)
+        {
+            byte[] b = str.getBytes(StandardCharsets.UTF_8);
+            putVarInt(b.length);
+            put(b, 0, b.length);
+        }
+
+        byte[] bytes()
+        {
+            return bytes;
+        }
+
+        void clear()
+        {
+            size = 0;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        void writeTo(OutputStream os) throws IOException
+        {
+            os.write(bytes, 0, size);
+        }
+    }
+}
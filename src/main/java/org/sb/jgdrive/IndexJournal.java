@@ -0,0 +1,232 @@
+package org.sb.jgdrive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.sb.jgdrive.IndexFile.Buf;
+
+/**
+ * Append-only log of {@link RemoteIndex} mutations made since the last snapshot ({@link IndexFile}).
+ * <pre>
+ * header : magic "JGDJ" (int), version (short)
+ * record : payload length (int), payload, crc32 of payload (int)
+ * payload: type (byte) followed by the type specific fields, strings as varint length + UTF-8 bytes
+ * </pre>
+ * Records are buffered until {@link #commit()}, so the changes of a command that fails halfway are not persisted.
+ * Replaying a record is idempotent, so a journal that outlived the snapshot it was written against
+ * (crash between snapshot and reset) can safely be replayed over the newer snapshot.
+ * A torn record at the tail is dropped.
+ */
+final class IndexJournal implements Closeable
+{
+    private static final Logger log = Logger.getLogger(IndexJournal.class.getPackage().getName());
+    private static final int MAGIC = 0x4A47444A; // JGDJ
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2;
+
+    private static final byte ADD = 1;
+    private static final byte MOVE = 2;
+    private static final byte REMOVE = 3;
+    private static final byte SYNC_TIME = 4;
+    private static final byte REVISION = 5;
+    private static final byte META = 6;
+
+    private final FileChannel fc;
+    private final CRC32 crc = new CRC32();
+    private final Buf pending = new Buf(1 << 12);
+
+    private IndexJournal(FileChannel fc)
+    {
+        this.fc = fc;
+    }
+
+    /**
+     * Applies the records of the journal at the given path to the index.
+     * @return the length of the valid part of the journal, 0 if there is none
+     */
+    static long replay(Path path, RemoteIndex ri) throws IOException
+    {
+        if(Files.notExists(path)) return 0;
+        long start = System.currentTimeMillis();
+        try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if(bb.remaining() < HEADER_SIZE || bb.getInt() != MAGIC || bb.getShort() != VERSION)
+            {
+                log.warning("Ignoring unrecognized index journal " + path);
+                return 0;
+            }
+            CRC32 crc = new CRC32();
+            int count = 0;
+            long valid = bb.position();
+            while(bb.remaining() >= 4)
+            {
+                int len = bb.getInt();
+                if(len <= 0 || bb.remaining() < len + 4) break;
+                ByteBuffer rec = bb.slice();
+                rec.limit(len);
+                bb.position(bb.position() + len);
+                crc.reset();
+                crc.update(rec.duplicate());
+                if((int)crc.getValue() != bb.getInt()) break;
+                apply(rec, ri);
+                valid = bb.position();
+                count++;
+            }
+            if(valid < fc.size())
+                log.warning("Dropping " + (fc.size() - valid) + " bytes of a torn record at the end of " + path);
+            final int records = count;
+            log.fine(() -> "Replayed " + records + " records from " + path + " in "
+                                + (System.currentTimeMillis() - start) + " ms");
+            return valid;
+        }
+    }
+
+    private static void apply(ByteBuffer rec, RemoteIndex ri)
+    {
+        byte type = rec.get();
+        switch(type)
+        {
+            case ADD:
+            case MOVE:
+                ri.put(IndexFile.readString(rec), IndexFile.readString(rec), IndexFile.readString(rec));
+                break;
+            case REMOVE:
+                ri.remove(IndexFile.readString(rec));
+                break;
+            case SYNC_TIME:
+                ri.setLastSyncTime(rec.getLong());
+                break;
+            case REVISION:
+                ri.setLastRevisionId(rec.getLong());
+                break;
+            case META:
+                String id = IndexFile.readString(rec);
+                byte[] md5 = null;
+                if(rec.get() != 0) rec.get(md5 = new byte[16]);
+                ri.putMeta(id, md5, rec.getLong(), rec.getLong(), rec.getLong());
+                break;
+            default:
+                log.warning("Skipping unknown index journal record type " + type);
+        }
+    }
+
+    /**
+     * Opens the journal for appending, anything after the given valid length is discarded.
+     */
+    static IndexJournal open(Path path, long validLength) throws IOException
+    {
+        FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        IndexJournal journal = new IndexJournal(fc);
+        if(validLength < HEADER_SIZE)
+            journal.reset();
+        else
+            fc.truncate(validLength).position(validLength);
+        return journal;
+    }
+
+    void add(String id, String parentId, String title)
+    {
+        append(ADD, id, parentId, title);
+    }
+
+    void move(String id, String parentId, String title)
+    {
+        append(MOVE, id, parentId, title);
+    }
+
+    void remove(String id)
+    {
+        append(REMOVE, id);
+    }
+
+    void syncTime(long epochMillis)
+    {
+        append(SYNC_TIME, epochMillis);
+    }
+
+    void revision(long revisionId)
+    {
+        append(REVISION, revisionId);
+    }
+
+    void meta(String id, byte[] md5, long size, long modified, long version)
+    {
+        Buf buf = new Buf(64);
+        buf.putByte(META);
+        buf.putString(id);
+        buf.putByte((byte)(md5 != null ? 1 : 0));
+        if(md5 != null) buf.put(md5, 0, md5.length);
+        buf.putLong(size);
+        buf.putLong(modified);
+        buf.putLong(version);
+        append(buf);
+    }
+
+    private void append(byte type, String... strs)
+    {
+        Buf buf = new Buf(64);
+        buf.putByte(type);
+        for(String str : strs) buf.putString(str != null ? str : "");
+        append(buf);
+    }
+
+    private void append(byte type, long val)
+    {
+        Buf buf = new Buf(9);
+        buf.putByte(type);
+        buf.putLong(val);
+        append(buf);
+    }
+
+    private synchronized void append(Buf rec)
+    {
+        crc.reset();
+        crc.update(rec.bytes(), 0, rec.size());
+        pending.putInt(rec.size());
+        pending.put(rec.bytes(), 0, rec.size());
+        pending.putInt((int)crc.getValue());
+    }
+
+    synchronized long size() throws IOException
+    {
+        return fc.size() + pending.size();
+    }
+
+    /**
+     * Writes the pending records and syncs them to disk.
+     */
+    synchronized void commit() throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(pending.bytes(), 0, pending.size());
+        while(bb.hasRemaining()) fc.write(bb);
+        pending.clear();
+        fc.force(false);
+    }
+
+    /**
+     * Drops all records, to be called once they are part of a snapshot.
+     */
+    synchronized void reset() throws IOException
+    {
+        pending.clear();
+        fc.truncate(0).position(0);
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+        bb.putInt(MAGIC).putShort(VERSION).flip();
+        while(bb.hasRemaining()) fc.write(bb);
+        fc.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        fc.close();
+    }
+}
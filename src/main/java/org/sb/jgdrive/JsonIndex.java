@@ -0,0 +1,101 @@
+package org.sb.jgdrive;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+
+import com.google.api.client.util.Key;
+
+/**
+ * The json shape of the index written by older versions (remote_index.json), only read to migrate it.
+ */
+public class JsonIndex
+{
+    @Key
+    private long lastSyncTimeEpochMillis;
+
+    @Key
+    private long lastRevisionId;
+
+    @Key
+    private CachingSupplier<Node> tree;
+
+    public JsonIndex()
+    {
+        //json deserialization constructor
+    }
+
+    RemoteIndex toRemoteIndex()
+    {
+        Node root = tree.get();
+        CompactTree t = new CompactTree(1 << 10);
+        t.setRoot(t.add(root.id, root.title, CompactTree.NONE));
+        ArrayDeque<Node> pending = new ArrayDeque<>();
+        ArrayDeque<Integer> parents = new ArrayDeque<>();
+        pending.push(root);
+        parents.push(t.root());
+        while(!pending.isEmpty())
+        {
+            Node n = pending.pop();
+            int me = parents.pop();
+            if(n.entries != null)
+                n.entries.forEach(ch ->
+                    {
+                        pending.push(ch);
+                        parents.push(t.add(ch.id, ch.title, me));
+                    });
+        }
+        return new RemoteIndex(lastSyncTimeEpochMillis, lastRevisionId, t);
+    }
+
+    public static class Node
+    {
+        @Key("i")
+        private String id;
+
+        @Key("t")
+        private String title;
+
+        @Key("es")
+        private HashSet<Node> entries;
+
+        public Node()
+        {
+
+        }
+
+        @Override
+        public int hashCode()
+        {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((id == null) ? 0 : id.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Node other = (Node) obj;
+            if (id == null)
+            {
+                if (other.id != null)
+                    return false;
+            }
+            else if (!id.equals(other.id))
+                return false;
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Node [id=" + id + ", title=" + title + "]";
+        }
+    }
+}
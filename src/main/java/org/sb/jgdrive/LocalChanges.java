@@ -1,29 +1,25 @@
 package org.sb.jgdrive;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import javax.xml.bind.DatatypeConverter;
+import org.sb.jgdrive.RemoteIndex.FileMeta;
 
-import com.google.api.services.drive.model.File;
 
 public class LocalChanges
 {
@@ -33,6 +29,7 @@ public class LocalChanges
     private final Map<Path, String> deletedPaths;
     private final Map<Entry<Path, String>, Path> movedFilesFromTo;
     private final boolean empty;
+    private final long watchSeq;
     
     public LocalChanges(final Driver driver) throws IOException
     {
@@ -43,16 +40,32 @@ public class LocalChanges
     {
         Path home = driver.getHome();
         RemoteIndex ri = driver.getRemoteIndex();
-        deletedPaths = ri.localPaths().filter(e -> Files.notExists(home.resolve(e.getKey()), LinkOption.NOFOLLOW_LINKS))
-                .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
+        Optional<WatchState> watch = fromTime.isPresent() ? Optional.empty() : driver.getWatchState();
+        watchSeq = watch.map(w -> w.seq).orElse(0L);
+        //a running watch saves walking the home and the index, unless it has lost track
+        Optional<Set<Path>> watched = watch.filter(w -> !w.rescan).map(w -> w.paths);
+        Set<Path> allChangedFiles;
+        if(watched.isPresent())
+        {
+            deletedPaths = watched.get().stream()
+                .filter(p -> Files.notExists(home.resolve(p), LinkOption.NOFOLLOW_LINKS))
+                .flatMap(p -> ri.localPaths(p))
+                .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue(), (id1, id2) -> id1));
+            allChangedFiles = driver.getLocalModifiedFiles(watched.get()).collect(Collectors.toSet());
+        }
+        else
+        {
+            TreeDiff diff = driver.diffLocal(fromTime);
+            deletedPaths = diff.deleted();
+            allChangedFiles = diff.changed();
+        }
         log.fine(() -> "Found deleted " + deletedPaths.keySet()); 
-        Set<Path> allChangedFiles = driver.getLocalModifiedFiles(fromTime).collect(Collectors.toSet());
         if(allChangedFiles.size() > 0)
         {
             modifiedFiles = ri.getFileId(allChangedFiles.stream());
             newFiles = allChangedFiles.stream().filter(p -> !modifiedFiles.containsKey(p)).collect(Collectors.toSet());
             modifiedFiles.keySet().removeAll(deletedPaths.keySet()); //those files that were previously recorded as modified
-            movedFilesFromTo = detectMovedFiles(driver, home, newFiles, deletedPaths);
+            movedFilesFromTo = detectMovedFiles(driver, newFiles, deletedPaths);
             newFiles.removeAll(movedFilesFromTo.values());
             deletedPaths.keySet().removeAll(movedFilesFromTo.keySet().stream().map(p -> p.getKey()).collect(Collectors.toSet()));
         }
@@ -65,6 +78,14 @@ public class LocalChanges
         empty = allChangedFiles.isEmpty() && deletedPaths.isEmpty();
     }
 
+    /**
+     * @return the last change of the running watch these changes include, 0 if there is no watch
+     */
+    public long getWatchSeq()
+    {
+        return watchSeq;
+    }
+
     public boolean isEmpty()
     {
         return empty;
@@ -90,54 +111,51 @@ public class LocalChanges
         return movedFilesFromTo;
     }
 
-    private static Map<Entry<Path, String>, Path> detectMovedFiles(Driver driver, Path home, 
-                                        Set<Path> newFiles, Map<Path, String> deletedPaths) throws IOException
+    /**
+     * The deleted files are indexed by md5, only the new files of the size of one of them are hashed, 
+     * each once, so that the cost is linear in the number of changes.
+     */
+    private static Map<Entry<Path, String>, Path> detectMovedFiles(Driver driver, Set<Path> newFiles, 
+                                        Map<Path, String> deletedPaths) throws IOException
     {
-        Map<String, File> idFileMap = driver.getFiles(deletedPaths.values().stream());
-        final Function<Path, String> md5HashFunc = Try.uncheckFunction(new Try.FunctionEx<Path, String, IOException>()
-        {
-            private final ConcurrentHashMap<Path, byte[]> pathMd5Map = new ConcurrentHashMap<>();
-            @Override
-            public String apply(Path path) throws IOException
-            {
-                byte[] hash = pathMd5Map.get(path);
-                if(hash == null) pathMd5Map.put(path, hash = md5Hash(path));
-                return DatatypeConverter.printHexBinary(hash).toLowerCase();
-            }
-            
-            private byte[] md5Hash(Path path) throws IOException
+        if(newFiles.isEmpty() || deletedPaths.isEmpty()) return Collections.emptyMap();
+        //the index knows the md5 of files synced with their meta-data, only the others are looked up remotely
+        RemoteIndex ri = driver.getRemoteIndex();
+        Map<String, Deque<Entry<Path, String>>> deletedByMd5 = new HashMap<>();
+        Set<Long> sizes = new HashSet<>();
+        Map<String, Path> unknown = new HashMap<>();
+        deletedPaths.forEach((path, id) ->
             {
-                try
-                {
-                    MessageDigest md5 = MessageDigest.getInstance("MD5");
-                    ByteChannel bc = Files.newByteChannel(path, StandardOpenOption.READ);
-                    ByteBuffer bb = ByteBuffer.allocate(2048);
-                    while(bc.read(bb) != -1)
-                    {
-                        bb.flip();
-                        md5.update(bb);
-                        bb.clear();
-                    }
-                    bc.close();
-                    return md5.digest();
-                }
-                catch (NoSuchAlgorithmException e)
-                {
-                    throw new IOException("Failed to generate MD5 hash of " + path, e);
-                }
-            }
-        });
+                Optional<FileMeta> meta = ri.getMeta(id);
+                if(meta.isPresent()) deleted(deletedByMd5, sizes, path, id, meta.get().getMd5Checksum(), meta.get().getSize());
+                else unknown.put(id, path);
+            });
+        driver.getFiles(unknown.keySet().stream()).forEach((id, f) -> deleted(deletedByMd5, sizes, unknown.get(id), id,
+                                            f.getMd5Checksum(), f.getFileSize() == null ? -1 : f.getFileSize()));
+        if(deletedByMd5.isEmpty()) return Collections.emptyMap();
         
-        return   
-            newFiles.stream().parallel().map(path -> 
-                deletedPaths.entrySet().stream().filter(e -> !Files.isDirectory(home.resolve(e.getKey())) &&
-                                                            md5HashFunc.apply(home.resolve(path))
-                                                                .equals(idFileMap.get(e.getValue()).getMd5Checksum()))
-                                 .findFirst().<Entry<Entry<Path, String>, Path>>map(
-                                         e -> new SimpleImmutableEntry<Entry<Path, String>, Path>(
-                                                     new SimpleImmutableEntry<Path, String>(e.getKey(), e.getValue()), path)))
-                         .filter(sie -> sie.isPresent()).map(sie -> sie.get())
-                                .collect(Collectors.toMap(sie -> sie.getKey(), sie -> sie.getValue()));
+        boolean anySize = sizes.contains(-1L);
+        Map<Path, String> md5s = driver.md5Hex(newFiles.stream(), a -> anySize || sizes.contains(a.size()));
+        log.fine(() -> "Hashed " + md5s.size() + " of " + newFiles.size() + " new files to match "
+                            + deletedPaths.size() + " deleted paths");
+        //sorted, so that the same files are paired up every time
+        Map<Entry<Path, String>, Path> moved = new HashMap<>();
+        md5s.keySet().stream().sorted().forEach(path -> 
+            {
+                Deque<Entry<Path, String>> from = deletedByMd5.get(md5s.get(path));
+                if(from != null && !from.isEmpty()) moved.put(from.poll(), path);
+            });
+        return moved;
+    }
+
+    private static void deleted(Map<String, Deque<Entry<Path, String>>> deletedByMd5, Set<Long> sizes, 
+                                    Path path, String id, String md5, long size)
+    {
+        //folders and files without binary content have none
+        if(md5 == null) return;
+        deletedByMd5.computeIfAbsent(md5.toLowerCase(), k -> new ArrayDeque<>())
+                        .add(new SimpleImmutableEntry<Path, String>(path, id));
+        sizes.add(size);
     }
 
 }
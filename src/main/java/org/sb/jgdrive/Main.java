@@ -25,7 +25,7 @@ import java.util.stream.Stream;
 public class Main
 {
     private static Supplier<Logger> log = CachingSupplier.wrap(() -> Logger.getLogger(Main.class.getPackage().getName()));
-    private static final String[] cmds = {"clone", "pull", "push", "status", "reset", "login", "info", "index"};
+    private static final String[] cmds = {"clone", "pull", "push", "status", "reset", "login", "info", "index", "watch"};
     
     public static void main(String[] args)
     {
@@ -68,7 +68,7 @@ public class Main
         final Try<Driver, IOException> driver = cmds.stream().filter(cmd -> "clone".equals(cmd.getKey())).findAny().map(
                             Try.wrap(cmd ->
                                     {
-                                        Clone clone = new Clone(home, simulation);
+                                        Clone clone = new Clone(home, cmd.getValue().contains("resume"), simulation);
                                         clone.exec(cmd.getValue());
                                         return clone.getDriver();
                                     }, IOException.class))
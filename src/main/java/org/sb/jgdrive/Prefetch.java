@@ -0,0 +1,85 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads pages on a thread of its own, at most depth pages ahead of the consumer, so that the next page is
+ * on its way while the current one is being worked on. Closing the stream stops the reader.
+ */
+final class Prefetch<T> extends Spliterators.AbstractSpliterator<T>
+{
+    private static final Logger log = Logger.getLogger(Prefetch.class.getPackage().getName());
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private final Thread reader;
+    private boolean done;
+
+    private Prefetch(String name, int depth, Try.SupplierEx<T, IOException> next)
+    {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        queue = new ArrayBlockingQueue<>(Math.max(1, depth));
+        reader = new Thread(() ->
+            {
+                try
+                {
+                    Object last = END;
+                    try
+                    {
+                        for(T page; (page = next.get()) != null;) queue.put(page);
+                    }
+                    catch(IOException | RuntimeException e)
+                    {
+                        //handed over after the pages read before it
+                        last = e;
+                    }
+                    queue.put(last);
+                }
+                catch(InterruptedException e)
+                {
+                    log.fine(() -> "Stopped reading " + name);
+                }
+            }, "jgdrive-" + name);
+        reader.setDaemon(true);
+    }
+
+    /**
+     * @param next returns the next page, null after the last one
+     */
+    static <T> Stream<T> stream(String name, int depth, Try.SupplierEx<T, IOException> next)
+    {
+        Prefetch<T> pf = new Prefetch<>(name, depth, next);
+        pf.reader.start();
+        return StreamSupport.stream(pf, false).onClose(pf.reader::interrupt);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action)
+    {
+        if(done) return false;
+        Object page;
+        try
+        {
+            page = queue.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the next page", e);
+        }
+        if(page == END || page instanceof Exception) done = true;
+        if(page instanceof IOException) throw new IORtException((IOException)page);
+        if(page instanceof RuntimeException) throw (RuntimeException)page;
+        if(!done) action.accept((T)page);
+        return !done;
+    }
+}
@@ -1,17 +1,14 @@
 package org.sb.jgdrive;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -20,12 +17,12 @@ import java.util.Set;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.xml.bind.DatatypeConverter;
+import org.sb.jgdrive.RemoteIndex.FileMeta;
 
+import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.File;
 
 public class Pull implements Cmd
@@ -35,108 +32,195 @@ public class Pull implements Cmd
     public void exec(final Driver driver, final List<String> opts) throws IOException, IllegalStateException
     {
         RemoteIndex ri = driver.getRemoteIndex();
-        RemoteChanges remChanges = driver.getRemoteChanges(ri.getLastRevisionId(), Optional.of(ri.getLastSyncTime()));
-        if(remChanges.getLargestChangeId() == ri.getLastRevisionId())
+        //pages are applied as they arrive, the next ones are read meanwhile
+        try(Stream<RemoteChanges> pages = driver.streamRemoteChanges(ri.getLastRevisionId(), Optional.of(ri.getLastSyncTime())))
         {
-            log.info("Already up to date at revision: " + ri.getLastRevisionId() + ". Nothing to pull.");
-            return;
+            Iterator<RemoteChanges> it = pages.iterator();
+            RemoteChanges remChanges = it.next();
+            if(remChanges.getLargestChangeId() == ri.getLastRevisionId())
+            {
+                log.info("Already up to date at revision: " + ri.getLastRevisionId() + ". Nothing to pull.");
+                return;
+            }
+            log.info("Pulling to revision: " + remChanges.getLargestChangeId());
+            LocalChanges lc = new LocalChanges(driver);
+            long syncTime = System.currentTimeMillis();
+            
+            final Set<Entry<Path, String>> dels = !opts.contains("ignore-deletes") ?  lc.getDeletedPaths().entrySet() : Collections.emptySet();
+            Map<String, Path> localChanges = Stream.of(lc.getModifiedFiles().entrySet(), dels, lc.getMovedFilesFromTo().keySet())
+                                   .flatMap(es -> es.stream())
+                                   .collect(Collectors.toMap(e -> e.getValue(), e -> e.getKey(), (p1, p2) -> p1));
+            Set<Path> newFiles = !opts.contains("ignore-new") ? lc.getNewFiles() : Collections.emptySet();
+            
+            long from = ri.getLastRevisionId();
+            try
+            {
+                List<Change> deferred = apply(driver, localChanges, newFiles, remChanges, true);
+                while(it.hasNext())
+                {
+                    remChanges = it.next();
+                    deferred = apply(driver, localChanges, newFiles, new RemoteChanges(
+                                            Stream.concat(deferred.stream(), remChanges.getChanges().stream()), 
+                                            remChanges.getLargestChangeId(), remChanges.getLastChangeId()), true);
+                }
+                if(!deferred.isEmpty())
+                    apply(driver, localChanges, newFiles, new RemoteChanges(deferred.stream(), 
+                                            remChanges.getLargestChangeId(), remChanges.getLastChangeId()), false);
+            }
+            catch(IllegalStateException e)
+            {
+                //a conflict is only found on the page it is in, the pages before it are applied and saved
+                if(ri.getLastRevisionId() == from) throw e;
+                throw new IllegalStateException(e.getMessage() + "\nPulled up to revision " + ri.getLastRevisionId() 
+                                                    + " of " + remChanges.getLargestChangeId() 
+                                                    + ", the next pull goes on from there.", e);
+            }
+            
+            ri.setLastSyncTime(syncTime);
+            log.info("Updated to revision: " + ri.getLastRevisionId());
+            driver.saveLocalChanges(lc.getModifiedFiles().keySet());
+            driver.saveRemoteIndex();
         }
-        log.info("Pulling to revision: " + remChanges.getLargestChangeId());
+    }
+    
+    /**
+     * Applies a page of changes and saves the index at the change it got to, so that an interrupted pull goes on from there.
+     * 
+     * @param mayDefer if the files whose parent is not known yet may wait for a later page  
+     * @return the deferred changes 
+     */
+    private List<Change> apply(Driver driver, Map<String, Path> localChanges, Set<Path> localNewFiles, 
+                                    RemoteChanges remChanges, boolean mayDefer) throws IOException
+    {
+        RemoteIndex ri = driver.getRemoteIndex();
         Path home = driver.getHome();
-        LocalChanges lc = new LocalChanges(driver);
-        ri.setLastSyncTime();
-        
-        Set<String> changedIds = remChanges.getChanges().stream().filter(ch -> ch.getFile() != null).map(ch -> ch.getFile().getId()).collect(Collectors.toSet());
-        
-        final Set<Entry<Path, String>> dels = !opts.contains("ignore-deletes") ?  lc.getDeletedPaths().entrySet() : Collections.emptySet();
-        
-		Set<Path> conflicts = Stream.of(lc.getModifiedFiles().entrySet(), 
-                                                    dels, lc.getMovedFilesFromTo().keySet())
-                               .flatMap(es -> es.stream())
-                               .filter(e -> changedIds.contains(e.getValue()))
-                               .map(e -> e.getKey()).collect(Collectors.toSet());
         
+		Set<Path> conflicts = remChanges.getChanges().stream().filter(ch -> ch.getFile() != null)
+		                        .map(ch -> localChanges.get(ch.getFile().getId())).filter(p -> p != null)
+		                        .collect(Collectors.toSet());
         
-        /*Set<Path> conflicts = remChanges.getChanges().stream().map(ch -> ri.getLocalPath(ch.getFile().getId()))
-                .filter(op -> op.map(p -> localChanges.contains(p)).orElse(false)).map(op -> op.get())*/
-                
         if (!conflicts.isEmpty())
             throw new IllegalStateException("Found following local changes that conflict with remote changes. "
                     + "Please remove these locally modified files: " + conflicts
                     + "from the working directory (files might have moved, use 'status --local-only' to detect moves) "
                     + "and then attempt a pull passing the '--ignore-deletes' option ");
         
-        List<Path> deletePaths = ri.remove(Stream.concat(remChanges.getDeletedFiles(), remChanges.getDeletedDirs()).map(f -> f.getId()));
+        Set<String> deletedIds = Stream.concat(remChanges.getDeletedFiles(), remChanges.getDeletedDirs()).map(f -> f.getId())
+                                        .collect(Collectors.toCollection(LinkedHashSet::new));
+        List<File> modDirs = remChanges.getModifiedDirs().collect(Collectors.toList());
+        List<File> modFiles = remChanges.getModifiedFiles().collect(Collectors.toList());
         
-        Map<File, Path> newFilePathMap = ri.add(Stream.concat(remChanges.getModifiedDirs(), remChanges.getModifiedFiles()));
-        if(!opts.contains("ignore-new") && !Collections.disjoint(newFilePathMap.values(), lc.getNewFiles()))
-        {
-            HashSet<Path> ints = new HashSet<Path>(newFilePathMap.values());
-            ints.retainAll(lc.getNewFiles());
-			throw new IllegalStateException("These local new files conflict with upstream changes: " + ints
+        //checked before the page is applied, the paths are those the files will get
+        Set<Path> newConflicts = localNewFiles.isEmpty() ? Collections.emptySet() 
+                                    : ri.paths(Stream.concat(modDirs.stream(), modFiles.stream()).collect(Collectors.toList()), 
+                                                deletedIds).values().stream()
+                                        .filter(localNewFiles::contains).collect(Collectors.toSet());
+        if(!newConflicts.isEmpty())
+			throw new IllegalStateException("These local new files conflict with upstream changes: " + newConflicts
 					+ "Please move these files from the working directory "
 					+ " OR attempt a pull passing the '--ignore-new' option ");
-
+        
+        List<Path> deletePaths = ri.remove(deletedIds.stream());
+        
+        Set<String> deferredIds = mayDefer ? unresolved(ri, Stream.concat(modDirs.stream(), modFiles.stream())) 
+                                           : Collections.emptySet();
+        if(!deferredIds.isEmpty())
+        {
+            log.fine(() -> "Deferring " + deferredIds.size() + " changes until their parent is known");
+            modDirs.removeIf(f -> deferredIds.contains(f.getId()));
+            modFiles.removeIf(f -> deferredIds.contains(f.getId()));
         }
-            
-        Stream<Entry<File, Path>> remModifiedFiles = driver.downloadFiles(remChanges.getModifiedFiles()
-        												.map(f -> new SimpleImmutableEntry<>(f, newFilePathMap.get(f)))
-        												.filter(sie -> sie.getValue() != null)
-	                                                    .filter(sie -> isModified(sie.getKey().getMd5Checksum(), home.resolve(sie.getValue())))
-	                                                    .filter(sie -> isIgnored(driver.getRemIgnores(), newFilePathMap.get(sie.getValue())))
-	                                                    .map(sie -> sie.getKey()));
         
+        HashMap<String, FileMeta> syncedMeta = new HashMap<>();
+        modFiles.forEach(f -> ri.getMeta(f.getId()).ifPresent(m -> syncedMeta.put(f.getId(), m)));
+        Map<File, Path> newFilePathMap = ri.add(Stream.concat(modDirs.stream(), modFiles.stream()));
+            
         log.fine("Updating directories ...");
-        remChanges.getModifiedDirs().forEach(f -> Optional.ofNullable(newFilePathMap.get(f))
-        							.filter(p -> isIgnored(driver.getRemIgnores(), p))
+        modDirs.forEach(f -> Optional.ofNullable(newFilePathMap.get(f))
+        							.filter(p -> !isIgnored(driver.getRemIgnores(), p, true))
         							.map(Try.uncheckFunction(p -> createDir(home.resolve(p)))));
         
         log.fine("Updating files ...");
-        remModifiedFiles.forEach(Try.uncheck(e -> moveFile(e.getValue(), 
-                    home.resolve(Optional.ofNullable(newFilePathMap.get(e.getKey())).orElseThrow(
-                            () -> new IllegalStateException("Remote file " + e.getKey() + " was not added to index."))))));
+        driver.downloadFiles(modFiles.stream()
+        												.map(f -> new SimpleImmutableEntry<>(f, newFilePathMap.get(f)))
+        												.filter(sie -> sie.getValue() != null)
+	                                                    .filter(sie -> isModified(sie.getKey().getMd5Checksum(), syncedMeta.get(sie.getKey().getId()), 
+	                                                                                    driver.getStatCache(), home, sie.getValue()))
+	                                                    .filter(sie -> !isIgnored(driver.getRemIgnores(), sie.getValue(), false)));
 
         log.fine("Deleting files ...");
         deletePaths.stream().forEach(Try.uncheck(p -> deletePath(home.resolve(p))));
         
-        ri.setLastRevisionId(remChanges.getLargestChangeId());
-        log.info("Updated to revision: " + ri.getLastRevisionId());
-        driver.saveLocalChanges(lc.getModifiedFiles().keySet());
+        List<Change> deferred = remChanges.getChanges().stream()
+                                    .filter(ch -> ch.getFile() != null && deferredIds.contains(ch.getFile().getId()))
+                                    .collect(Collectors.toList());
+        //a deferred change has to be listed again if the pull is interrupted
+        long upTo = deferred.stream().mapToLong(ch -> ch.getId() - 1).min().orElse(remChanges.getLastChangeId());
+        if(upTo > ri.getLastRevisionId()) ri.setLastRevisionId(upTo);
         driver.saveRemoteIndex();
+        return deferred;
+    }
+    
+    /**
+     * A folder that was created and then renamed is listed after its content, the files below a folder that is neither
+     * in the index nor among the given files cannot be placed yet. Neither can a folder moved under one that is still
+     * below it, until the later change that moves that one out comes along.
+     * 
+     * @return the ids of the files that cannot be placed
+     */
+    private static Set<String> unresolved(RemoteIndex ri, Stream<File> files)
+    {
+        Map<String, String> parentIds = files.collect(Collectors.toMap(f -> f.getId(), f -> RemoteIndex.parentId(f), (p1, p2) -> p2));
+        Set<String> unresolved = new HashSet<>();
+        for(boolean grew = true; grew;)
+        {
+            grew = false;
+            for(Entry<String, String> e : parentIds.entrySet())
+                if(!unresolved.contains(e.getKey()) && (unresolved.contains(e.getValue())
+                        || !parentIds.containsKey(e.getValue()) && !ri.contains(e.getValue())
+                        || isUnderItself(ri, parentIds, unresolved, e.getKey())))
+                    grew |= unresolved.add(e.getKey());
+        }
+        return unresolved;
+    }
+    
+    /**
+     * @return true if the new parent of the file would be below it, once the changes that are not deferred are applied
+     */
+    private static boolean isUnderItself(RemoteIndex ri, Map<String, String> parentIds, Set<String> unresolved, String id)
+    {
+        Set<String> seen = new HashSet<>();
+        for(String p = parentIds.get(id); p != null && seen.add(p); 
+                p = parentIds.containsKey(p) && !unresolved.contains(p) ? parentIds.get(p) : ri.getParentId(p).orElse(null))
+            if(p.equals(id)) return true;
+        return false;
     }
     
-    private boolean isModified(String checkSum, Path path)
+    private boolean isModified(String checkSum, FileMeta synced, StatCache sc, Path home, Path rel)
     {
+        Path path = home.resolve(rel);
         try
         {
             if(Files.notExists(path)) return true;
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            ByteChannel bc = Files.newByteChannel(path, StandardOpenOption.READ);
-            ByteBuffer bb = ByteBuffer.allocate(2048);
-            while(bc.read(bb) != -1)
-            {
-                bb.flip();
-                md5.update(bb);
-                bb.clear();
-            }
-            bc.close();
-            boolean isMod = !checkSum.equalsIgnoreCase(DatatypeConverter.printHexBinary(md5.digest()));
+            //an untouched local copy of the last synced version need not be hashed
+            boolean isMod = synced != null && synced.matches(path) ? !synced.getMd5Checksum().equalsIgnoreCase(checkSum)
+                                                                    : !checkSum.equalsIgnoreCase(sc.md5Hex(rel));
             if(!isMod)
             	log.info("Exists local '" + path + "'");
 			return isMod;
         }
-        catch (NoSuchAlgorithmException | IOException e)
+        catch (IOException e)
         {
             throw new RuntimeException("Failed to generate MD5 hash of " + path, e);
         }
     }
 
-    private boolean isIgnored(Supplier<Pattern[]> pats, Path path)
+    private boolean isIgnored(Supplier<IgnoreRules> rules, Path path, boolean dir)
     {
         if(path == null)
             return true;
             
-    	boolean ign = Stream.of(pats.get()).map(Pattern::asPredicate).anyMatch(pred -> pred.test(path.toString()));
+    	boolean ign = rules.get().ignores(path, dir);
     	if(ign)
     		log.info("Ignoring remote '" + path + "'");
 		return ign;
@@ -148,13 +232,6 @@ public class Pull implements Cmd
         return Files.deleteIfExists(p);
     }
 
-    private void moveFile(Path tmpPath, Path lp) throws IOException
-    {
-        log.info("Updating local '" + lp + "'");
-        createDir(lp.getParent());
-        Files.move(tmpPath, lp, StandardCopyOption.REPLACE_EXISTING);
-    }
-
     private boolean createDir(Path p) throws IOException
     {
         if(!Files.exists(p, LinkOption.NOFOLLOW_LINKS))
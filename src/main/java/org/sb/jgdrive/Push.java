@@ -2,6 +2,7 @@ package org.sb.jgdrive;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -28,6 +29,7 @@ public class Push implements Cmd
         RemoteIndex ri = driver.getRemoteIndex();
         Path home = driver.getHome();
         LocalChanges lc = new LocalChanges(driver);
+        StatCache sc = driver.getStatCache();
         
         ConcurrentHashMap<Path, File> newPathFileMap = new ConcurrentHashMap<Path, File>();
         if(!lc.isEmpty())
@@ -40,8 +42,15 @@ public class Push implements Cmd
             {
                 log.info("Pushing local changes to drive");
                 Map<Path, String> modifiedFiles = lc.getModifiedFiles();
-                modifiedFiles.entrySet().stream().parallel()
-                    .forEach(Try.uncheck(e -> driver.updateFile(e.getValue(), home.resolve(e.getKey()))));
+                ri.updateMeta(modifiedFiles.entrySet().stream().parallel()
+                    .map(Try.uncheckFunction(e -> 
+                        {
+                            BasicFileAttributes before = sc.stat(e.getKey());
+                            File file = driver.updateFile(e.getValue(), home.resolve(e.getKey()));
+                            sc.synced(e.getKey(), before, file.getMd5Checksum());
+                            return file;
+                        }))
+                    .collect(Collectors.toList()).stream());
 
                 driver.clearLocalChanges();
                 ri.setLastSyncTime();
@@ -56,9 +65,12 @@ public class Push implements Cmd
                                             .filter(e -> !newFiles.contains(e.getKey()) 
                                                                 && !movedFilesFromTo.containsValue(e.getKey()))
                                             .map(e -> e.getKey());
-                newPathFileMap.putAll(driver.mkdirs(newDirs, pathParentIdMap::get));
+                Map<Path, File> newDirMap = driver.mkdirs(newDirs, pathParentIdMap::get);
+                newPathFileMap.putAll(newDirMap);
+                ri.add(newDirMap.values().stream());
+                driver.saveRemoteIndex();
                 
-                driver.patchFiles(
+                ri.add(driver.patchFiles(
                     movedFilesFromTo.entrySet().stream().map(es -> {
                         File f = new File();
                         Path from = es.getKey().getKey();
@@ -70,14 +82,24 @@ public class Push implements Cmd
                             f.setParents(Collections.singletonList(new ParentReference().setId(
                                         pathParentIdMap.get(to).orElseGet(() -> newPathFileMap.get(to.getParent()).getId()))));
                         return f;
-                    }));
+                    })).stream());
                 ri.setLastSyncTime();
+                driver.saveRemoteIndex();
                 
                 newFiles.stream().parallel().forEach(Try.uncheck(p -> 
-                        newPathFileMap.put(p, driver.insertFile(home.resolve(p), p.getParent() != null ? 
-                                pathParentIdMap.get(p).orElseGet(() -> newPathFileMap.get(p.getParent()).getId()) : null))));
+                        {
+                            BasicFileAttributes before = sc.stat(p);
+                            File file = driver.insertFile(home.resolve(p), p.getParent() != null ? 
+                                    pathParentIdMap.get(p).orElseGet(() -> newPathFileMap.get(p.getParent()).getId()) : null);
+                            newPathFileMap.put(p, file);
+                            ri.add(Stream.of(file));
+                            //a push that dies halfway must not upload this file again
+                            driver.commitRemoteIndex();
+                            sc.synced(p, before, file.getMd5Checksum());
+                        }));
                 
                 ri.setLastSyncTime();
+                driver.saveRemoteIndex();
                 
                 driver.trashFiles(deletedPaths.values().stream());
                 ri.removePaths(deletedPaths.keySet().stream());
@@ -89,16 +111,16 @@ public class Push implements Cmd
                 largestChangeId = driver.getLargestChangeId();
                 if(largestChangeId > ri.getLastRevisionId())
                 {
-                    ri.add(newPathFileMap.values().stream());
                     ri.setLastRevisionId(largestChangeId);
-                    driver.saveRemoteIndex();
                     log.info("Updated to revision: " + ri.getLastRevisionId() + ", sync time: '" + 
                             new Date(ri.getLastSyncTime().toMillis()) + "' (" + ri.getLastSyncTime() + ")");
                 }
+                driver.saveRemoteIndex();
             }
         }
         else
             log.info("Not local changes found ... nothing to push");
+        driver.watchSynced(lc.getWatchSeq());
     
     }
     
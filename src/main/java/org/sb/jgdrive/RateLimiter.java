@@ -0,0 +1,238 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.MultipartContent;
+
+/**
+ * A token bucket shared by all requests of a drive. The rate is halved every time drive pushes back with a 429
+ * or a rate limit 403 and grows back by a small step with every success, between {@link #MIN_RATE} and the configured
+ * maximum. A throttled request, or a failed (5xx) one other than a POST, is retried after its Retry-After or an
+ * exponential backoff with jitter, no request is sent by anyone until then. A POST (e.g. an insert) may have taken
+ * effect before it failed, sending it again could create a duplicate, batches and uploads retry on their own.
+ */
+final class RateLimiter
+{
+    private static final Logger log = Logger.getLogger(RateLimiter.class.getPackage().getName());
+    static final double MIN_RATE = 0.5;
+    private static final double INCREASE = 0.01;
+    private static final long BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 64000;
+
+    private final double maxRate;
+    private final double burst;
+    private double rate;
+    private double tokens;
+    private long last = System.nanoTime();
+    private long pausedUntil = last;
+    private int failures;
+
+    /**
+     * @param maxRate requests per second
+     * @param burst the number of requests that may be sent at once after a quiet period
+     */
+    RateLimiter(double maxRate, int burst)
+    {
+        this.maxRate = Math.max(MIN_RATE, maxRate);
+        this.burst = Math.max(1, burst);
+        this.rate = this.maxRate;
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Makes the request wait for its turn and retry when throttled, in front of the handlers already installed.
+     */
+    void install(HttpRequest request)
+    {
+        Installed installed = new Installed(request);
+        request.setInterceptor(installed).setUnsuccessfulResponseHandler(installed).setResponseInterceptor(installed);
+    }
+
+    /**
+     * Takes the waiting and retrying back out of a request sent as a call of a batch, the {@link BatchExecutor}
+     * acquires and retries the calls itself, a call retried by the batch request would skip both.
+     */
+    void exempt(HttpRequest request)
+    {
+        if(!(request.getInterceptor() instanceof Installed)) return;
+        Installed installed = (Installed)request.getInterceptor();
+        request.setInterceptor(installed.interceptor).setUnsuccessfulResponseHandler(installed.handler);
+    }
+
+    private final class Installed implements HttpExecuteInterceptor, HttpUnsuccessfulResponseHandler, HttpResponseInterceptor
+    {
+        private final HttpExecuteInterceptor interceptor;
+        private final HttpUnsuccessfulResponseHandler handler;
+        private final HttpResponseInterceptor responseInterceptor;
+
+        Installed(HttpRequest request)
+        {
+            interceptor = request.getInterceptor();
+            handler = request.getUnsuccessfulResponseHandler();
+            responseInterceptor = request.getResponseInterceptor();
+        }
+
+        @Override
+        public void intercept(HttpRequest r) throws IOException
+        {
+            //the calls of a batch are acquired by the batch executor
+            if(!(r.getContent() instanceof MultipartContent)) acquire(1);
+            if(interceptor != null) interceptor.intercept(r);
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest r, HttpResponse resp, boolean supportsRetry) throws IOException
+        {
+            return (handler != null && handler.handleResponse(r, resp, supportsRetry)) || handle(r, resp, supportsRetry);
+        }
+
+        @Override
+        public void interceptResponse(HttpResponse resp) throws IOException
+        {
+            if(resp.isSuccessStatusCode()) succeeded();
+            if(responseInterceptor != null) responseInterceptor.interceptResponse(resp);
+        }
+    }
+
+    private boolean handle(HttpRequest request, HttpResponse resp, boolean supportsRetry)
+    {
+        int status = resp.getStatusCode();
+        boolean throttled = status == 429;
+        if(status == 403)
+        {
+            //the reason is only in the content, which cannot be read twice, the error of any other 403 is lost to the caller
+            GoogleJsonError error;
+            try
+            {
+                error = GoogleJsonError.parse(Driver.jfac, resp);
+            }
+            catch(IOException | IllegalArgumentException e)
+            {
+                log.fine(() -> "Unreadable 403 for " + request.getRequestMethod() + " " + request.getUrl() + ": " + e);
+                return false;
+            }
+            if(!isRateLimited(error))
+            {
+                log.warning("Got 403 for " + request.getRequestMethod() + " " + request.getUrl() + ": "
+                                + (error != null ? error.getMessage() : resp.getStatusMessage()));
+                return false;
+            }
+            throttled = true;
+        }
+        if(!throttled && (status < 500 || "POST".equals(request.getRequestMethod()))) return false;
+        long delay = backoff(retryAfter(resp.getHeaders()), throttled);
+        log.fine(() -> "Got " + status + " for " + request.getRequestMethod() + " " + request.getUrl()
+                            + (supportsRetry ? ", retrying in " + delay + " ms" : ""));
+        return supportsRetry;
+    }
+
+    /**
+     * Rate limits are reported as 403 with a rateLimitExceeded or userRateLimitExceeded reason, or as 429.
+     */
+    static boolean isRateLimited(GoogleJsonError e)
+    {
+        if(e == null) return false;
+        if(e.getCode() == 429) return true;
+        return e.getCode() == 403 && e.getErrors() != null && e.getErrors().stream()
+                    .anyMatch(ei -> "rateLimitExceeded".equals(ei.getReason()) || "userRateLimitExceeded".equals(ei.getReason()));
+    }
+
+    void acquire(int permits) throws InterruptedIOException
+    {
+        long wait;
+        synchronized(this)
+        {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * rate / TimeUnit.SECONDS.toNanos(1));
+            last = now;
+            //tokens taken ahead of time are paid back by waiting
+            tokens -= permits;
+            wait = Math.max(pausedUntil - now, tokens < 0 ? (long)(-tokens / rate * TimeUnit.SECONDS.toNanos(1)) : 0);
+        }
+        if(wait <= 0) return;
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+        }
+    }
+
+    synchronized void succeeded()
+    {
+        failures = 0;
+        rate = Math.min(maxRate, rate + maxRate * INCREASE);
+    }
+
+    /**
+     * Holds back all requests for the given time, or a backoff growing with the failures in a row if none is given.
+     *
+     * @param throttled if drive asked to slow down, which also lowers the rate
+     * @return the delay in milliseconds
+     */
+    synchronized long backoff(long retryAfterMillis, boolean throttled)
+    {
+        failures++;
+        if(throttled)
+        {
+            rate = Math.max(MIN_RATE, rate / 2);
+            log.fine(() -> "Throttled, lowered the rate to " + rate + " requests/s");
+        }
+        long delay = retryAfterMillis > 0 ? retryAfterMillis : backoffMillis(failures);
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+        tokens = Math.min(tokens, 0);
+        return delay;
+    }
+
+    /**
+     * @return an exponential backoff with jitter for the given number of failures in a row
+     */
+    static long backoffMillis(int failures)
+    {
+        return Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(Math.max(failures, 1) - 1, 6))
+                    + ThreadLocalRandom.current().nextLong(BACKOFF_MILLIS);
+    }
+
+    /**
+     * @return the Retry-After header in milliseconds, given in seconds or as a date, 0 if there is none
+     */
+    static long retryAfter(HttpHeaders headers)
+    {
+        String value = headers.getRetryAfter();
+        if(value == null || value.isEmpty()) return 0;
+        try
+        {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        }
+        catch(NumberFormatException e)
+        {
+            try
+            {
+                return Math.max(0, ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+                                        - System.currentTimeMillis());
+            }
+            catch(DateTimeParseException ex)
+            {
+                log.fine(() -> "Ignoring Retry-After: " + value);
+                return 0;
+            }
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package org.sb.jgdrive;
 
+import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -14,16 +14,27 @@ public class RemoteChanges
 {
 	private static final Logger log = Logger.getLogger(RemoteChanges.class.getPackage().getName());
 	
-    private final Set<Change> changes;
+    private final List<Change> changes;
     private final long largestChangeId;
+    private final long lastChangeId;
+    
     public RemoteChanges(Stream<Change> changes, long largestChangeId)
+    {
+        this(changes, largestChangeId, largestChangeId);
+    }
+    
+    /**
+     * @param lastChangeId the change id up to which these changes go, less than largestChangeId for all but the last page
+     */
+    public RemoteChanges(Stream<Change> changes, long largestChangeId, long lastChangeId)
     {
         super();
-        this.changes = changes.collect(Collectors.toSet());
+        this.changes = changes.collect(Collectors.toList());
         this.largestChangeId = largestChangeId;
+        this.lastChangeId = lastChangeId;
     }
     
-    public Set<Change> getChanges()
+    public List<Change> getChanges()
     {
         return changes;
     }
@@ -32,6 +43,11 @@ public class RemoteChanges
         return largestChangeId;
     }
     
+    public long getLastChangeId()
+    {
+        return lastChangeId;
+    }
+    
     public Stream<File> getModifiedFiles()
     {
         return getChanges().stream()
@@ -3,22 +3,42 @@
  */
 package org.sb.jgdrive;
 
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.bind.DatatypeConverter;
 
 import com.google.api.client.util.Key;
 import com.google.api.services.drive.model.File;
@@ -30,11 +50,11 @@ import com.google.api.services.drive.model.File;
 public class RemoteIndex
 {
     private static final Logger log = Logger.getLogger(Pull.class.getPackage().getName());
+    private static final int NONE = CompactTree.NONE;
+    private static final String SEPARATOR = FileSystems.getDefault().getSeparator();
     
-    @Key
     private long lastSyncTimeEpochMillis;
     
-    @Key
     private long lastRevisionId;
     
     //@Key
@@ -42,31 +62,108 @@ public class RemoteIndex
     
     //private final HashMap<String, Path> dirIdPathMapCache = new HashMap<>();
     
-    @Key
-    private CachingSupplier<Node> tree;
+    private final CompactTree tree;
+    
+    private IndexJournal journal;
 
     public RemoteIndex(long lastSyncTimeEpochMillis, long lastRevisionId, Map<String, FileEntry> entryById)
     {
         this.lastSyncTimeEpochMillis = lastSyncTimeEpochMillis;
         this.lastRevisionId = lastRevisionId;
-        tree = CachingSupplier.wrap2(() -> new TreeBuilder(entryById).getRoot());
+        tree = new CompactTree(entryById.size());
+        TreeBuilder builder = new TreeBuilder();
+        entryById.forEach((id, fe) -> 
+            {
+                int n = builder.add(id, fe.title, fe.parentId);
+                if(fe.parentId == null) tree.setRoot(n);
+            });
+        List<String> orphans = builder.link();
+        if(!orphans.isEmpty()) log.severe("Could not resolve hierarchy for " + orphans);
     }
     
     public RemoteIndex(long lastRevisionId, String rootFolderId)
     {
         setLastSyncTime();
         this.lastRevisionId = lastRevisionId;
-        tree = CachingSupplier.wrap2(() -> new Node(rootFolderId, rootFileEntry()));
+        tree = new CompactTree(1 << 10);
+        tree.setRoot(tree.add(rootFolderId, "", NONE));
     }
 
-    private static File rootFileEntry()
+    RemoteIndex(long lastSyncTimeEpochMillis, long lastRevisionId, CompactTree tree)
     {
-        return new File().setTitle("");
+        this.lastSyncTimeEpochMillis = lastSyncTimeEpochMillis;
+        this.lastRevisionId = lastRevisionId;
+        this.tree = tree;
     }
-
-    public RemoteIndex()
+    
+    /**
+     * The remote state of an entry as of the last sync.
+     */
+    public static class FileMeta
     {
-        //json deserialization constructor
+        private final String md5Checksum;
+        private final long size;
+        private final long modifiedTime;
+        private final long version;
+        
+        FileMeta(String md5Checksum, long size, long modifiedTime, long version)
+        {
+            this.md5Checksum = md5Checksum;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.version = version;
+        }
+
+        /**
+         * @return null for folders and files without binary content
+         */
+        public String getMd5Checksum()
+        {
+            return md5Checksum;
+        }
+
+        /**
+         * @return -1 if unknown
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getModifiedTime()
+        {
+            return modifiedTime;
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+        
+        /**
+         * A local file with the size and modification time of this version is taken to have its content, 
+         * downloads set the modification time to the remote one.
+         */
+        public boolean matches(Path local)
+        {
+            try
+            {
+                BasicFileAttributes attrs = Files.readAttributes(local, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return md5Checksum != null && attrs.isRegularFile() && attrs.size() == size 
+                            && attrs.lastModifiedTime().toMillis() == modifiedTime;
+            }
+            catch(IOException e)
+            {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "FileMeta [md5Checksum=" + md5Checksum + ", size=" + size + ", modifiedTime=" + modifiedTime 
+                        + ", version=" + version + "]";
+        }
     }
     
     public static class FileEntry
@@ -150,87 +247,245 @@ public class RemoteIndex
         }
     }
     
-    public Map<File, Path> add(Stream<File> files)
+    void setJournal(IndexJournal journal)
+    {
+        this.journal = journal;
+    }
+    
+    public synchronized Map<File, Path> add(Stream<File> files)
     {
-        /*if(files.map(f -> add(f)).reduce(false, (a, e) -> a | e))
-            dirIdPathMapCache.clear();*/
-        
         HashMap<File, Path> filePathMap = new HashMap<File, Path>();
         
-        Map<String, File> addedFiles = files.collect(Collectors.toMap(f -> f.getId(), f -> f));
-        Node t = tree.get();
+        //register every file first, so that parents arriving in the same batch can be resolved
+        Map<File, Integer> addedNodes = new LinkedHashMap<>();
+        Set<Integer> newNodes = new HashSet<>();
+        files.forEach(f -> 
+            {
+                int node = tree.find(f.getId());
+                if(node == NONE)
+                {
+                    node = tree.add(f.getId(), f.getTitle(), NONE);
+                    newNodes.add(node);
+                }
+                else
+                    tree.setTitle(node, f.getTitle());
+                addedNodes.put(f, node);
+            });
         
-        Set<String> searchIds = addedFiles.values().stream().flatMap(f -> Stream.of(f.getId(), parentId(f))).collect(Collectors.toSet());
+        //all moved nodes are taken out before any is put back, a batch that swaps the nesting of two folders
+        //would otherwise put one under the other while the other is still under it
+        Map<Integer, Integer> moves = new LinkedHashMap<>();
+        addedNodes.forEach((f, node) -> {
+            int par = parentNode(parentId(f));
+            if(par == NONE)
+                log.fine("Could not find parent of " + f.getId() + ", parentId=" + parentId(f));
+            else if(tree.parent(node) != par)
+                moves.put(node, par);
+        });
+        moves.keySet().forEach(tree::detach);
+        moves.forEach((node, par) -> {
+            //a cycle left once the whole batch is in, the node stays out and is unresolved
+            if(tree.isUnder(par, node))
+                log.fine("Cannot move " + tree.id(node) + " under its own descendant " + tree.id(par));
+            else
+                tree.attach(node, par);
+        });
         
-        Map<String, Entry<Node, Path>>  searchRes 
-                = t.find(Paths.get(""), searchIds).collect(Collectors.toMap(eoe -> eoe.getKey(), eoe -> eoe.getValue()));
-
-        Stream<Entry<File, Entry<Node, Path>>> existingFiles = 
-                addedFiles.entrySet().stream().filter(e -> searchRes.containsKey(e.getKey()))
-                            .map(e -> new SimpleImmutableEntry<File, Entry<Node, Path>>(e.getValue(), searchRes.get(e.getKey())));
-
-        Stream<File> newFiles = 
-                addedFiles.entrySet().stream().filter(e -> !searchRes.containsKey(e.getKey())).map(e -> e.getValue());
-
-        Map<String, Entry<Node, Path>> existingDirs = 
-                searchRes.entrySet().stream().filter(e -> !addedFiles.containsKey(e.getKey()))
-                            .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
-
-        HashMap<String, Node> remNodes = new HashMap<>();
-        newFiles.forEach(f -> {
-                    Node node = remNodes.remove(f.getId());
-                    if(node == null) 
-                        node = new Node(f.getId(), f);
-                    else 
-                        node.setEntry(f);
-                    String parId = parentId(f);
-                    Entry<Node, Path> parNode = existingDirs.get(parId);
-                    if(parNode != null)
-                    {
-                        parNode.getKey().add(node);
-                        node.nodes(parNode.getValue()).forEach(e -> {
-                                                File child = addedFiles.get(e.getKey().id);
-                                                filePathMap.put(child, e.getValue());
-                                                if(isDir(child))
-                                                    existingDirs.put(child.getId(), 
-                                                            new SimpleImmutableEntry<>(e.getKey(), e.getValue()));
-                        });
-                    }
-                    else
+        List<Integer> unresolved = new ArrayList<>();
+        addedNodes.forEach((f, node) -> {
+            Optional<Path> path = path(node);
+            if(path.isPresent())
+                filePathMap.put(f, path.get());
+            else
+                unresolved.add(node);
+        });
+        if(!unresolved.isEmpty())
+        {
+            log.severe("Could not resolve hierarchy for " + unresolved.stream().map(tree::id).collect(Collectors.toList()));
+            //the children of an unresolved node are unresolved too, and go with it
+            unresolved.stream().filter(n -> tree.isLive(n)).forEach(n -> drop(n, newNodes::contains));
+        }
+        if(journal != null)
+            //parents before children, so that a replay can resolve them
+            filePathMap.entrySet().stream()
+                .sorted(Comparator.comparingInt(e -> e.getValue().getNameCount()))
+                .map(e -> addedNodes.get(e.getKey()))
+                .forEach(n -> 
                     {
-                        Optional<Node> parNod = 
-                        remNodes.values().stream().map(n -> n.find(Paths.get(""), parId))
-                                    .filter(os -> os.isPresent()).map(os -> os.get().getKey()).findFirst();
-                        if(!parNod.isPresent()) 
-                        {
-                            parNod = Optional.of(new Node(parId, rootFileEntry()));
-                            remNodes.put(parId, parNod.get());
-                        }
-                        parNod.get().add(node);
-                    }
-                });
-         if(!remNodes.isEmpty())
-            log.severe("Could not resolve hierarchy for " + remNodes);
-
-         existingFiles.forEach(e -> {
-             Node match = e.getValue().getKey();
-             File file = e.getKey();
-             Path matchPath = e.getValue().getValue();
-             String parId = parentId(file);
-             t.find(matchPath.getParent())
-                 .filter(par -> !par.id.equals(parId))
-                 .ifPresent(par -> 
-                     {
-                         par.remove(match);
-                         existingDirs.get(parId).getKey().add(match);
-                     });
-             match.setEntry(file);
-             filePathMap.put(file, matchPath);
-         });
-     
+                        if(newNodes.contains(n)) journal.add(tree.id(n), tree.id(tree.parent(n)), tree.title(n));
+                        else journal.move(tree.id(n), tree.id(tree.parent(n)), tree.title(n));
+                    });
+        filePathMap.keySet().forEach(f -> setMeta(addedNodes.get(f), f));
+        return filePathMap;
+    }
+    
+    /**
+     * The paths {@link #add(Stream)} would give the files once the given ids are removed, the index is left as it is.
+     * Files that would not be placed are left out.
+     */
+    synchronized Map<String, Path> paths(Collection<File> files, Set<String> removedIds)
+    {
+        Map<String, File> byId = files.stream().collect(Collectors.toMap(f -> f.getId(), f -> f, (f1, f2) -> f2));
+        Map<String, Optional<Path>> paths = new HashMap<>();
+        byId.keySet().forEach(id -> path(id, byId, removedIds, paths, new HashSet<>()));
+        return byId.keySet().stream().filter(id -> paths.get(id).isPresent())
+                    .collect(Collectors.toMap(id -> id, id -> paths.get(id).get()));
+    }
+
+    private Optional<Path> path(String id, Map<String, File> byId, Set<String> removedIds, 
+                                    Map<String, Optional<Path>> paths, Set<String> seen)
+    {
+        Optional<Path> known = paths.get(id);
+        if(known != null) return known;
+        Optional<Path> path;
+        int node = parentNode(id);
+        if(!seen.add(id) || removedIds.contains(id) && !byId.containsKey(id))
+            path = Optional.empty();
+        else if(byId.containsKey(id))
+            path = path(parentId(byId.get(id)), byId, removedIds, paths, seen).map(p -> p.resolve(byId.get(id).getTitle()));
+        else if(node == NONE)
+            path = Optional.empty();
+        else if(node == tree.root())
+            path = Optional.of(Paths.get(""));
+        else if(tree.parent(node) == NONE)
+            path = Optional.empty();
+        else
+            path = path(tree.id(tree.parent(node)), byId, removedIds, paths, seen).map(p -> p.resolve(tree.title(node)));
+        paths.put(id, path);
+        return path;
+    }
+    
+    /**
+     * Bulk counterpart of {@link #add(Stream)} for clone, the batch is linked in one pass with no per node bookkeeping. 
+     * Files whose parent is not in the index are dropped, and left out of the result.
+     * The result is keyed by identity, hashing a {@link File} goes over all of its fields.
+     */
+    public synchronized Map<File, Path> load(Stream<File> files)
+    {
+        TreeBuilder builder = new TreeBuilder();
+        List<File> batch = files.collect(Collectors.toList());
+        int[] nodes = batch.stream().mapToInt(f -> builder.add(f.getId(), f.getTitle(), parentId(f))).toArray();
+        List<String> orphans = builder.link();
+        if(!orphans.isEmpty()) log.fine(() -> "Dropped " + orphans.size() + " files with an unknown parent: " + orphans);
+        
+        HashMap<Integer, Path> dirPaths = new HashMap<>();
+        dirPaths.put(tree.root(), Paths.get(""));
+        IdentityHashMap<File, Path> filePathMap = new IdentityHashMap<>(batch.size());
+        for(int i = 0; i < nodes.length; i++)
+            if(tree.isLive(nodes[i])) 
+                filePathMap.put(batch.get(i), dirPath(tree.parent(nodes[i]), dirPaths).resolve(tree.title(nodes[i])));
+        if(journal != null)
+            //parents before children, so that a replay can resolve them
+            builder.nodes().boxed().sorted(Comparator.comparingInt(n -> depth(n)))
+                .forEach(n -> journal.add(tree.id(n), tree.id(tree.parent(n)), tree.title(n)));
+        for(int i = 0; i < nodes.length; i++)
+            if(tree.isLive(nodes[i])) setMeta(nodes[i], batch.get(i));
         return filePathMap;
     }
     
+    /**
+     * Records the meta-data of files already in the index, as returned by an update.
+     */
+    public synchronized void updateMeta(Stream<File> files)
+    {
+        files.forEach(f -> 
+            {
+                int n = tree.find(f.getId());
+                if(n != NONE) setMeta(n, f);
+            });
+    }
+    
+    private void setMeta(int n, File f)
+    {
+        //only files read with all of Driver's FILE_ATTRS carry meta-data
+        if(f.getModifiedDate() == null) return;
+        byte[] md5 = f.getMd5Checksum() != null && f.getMd5Checksum().length() == 32 
+                                ? DatatypeConverter.parseHexBinary(f.getMd5Checksum()) : null;
+        long size = f.getFileSize() != null ? f.getFileSize() : -1;
+        long version = f.getVersion() != null ? f.getVersion() : -1;
+        tree.setMeta(n, md5, size, f.getModifiedDate().getValue(), version);
+        if(journal != null) journal.meta(tree.id(n), md5, size, f.getModifiedDate().getValue(), version);
+    }
+    
+    /**
+     * Sets the meta-data of a single node, used when replaying the journal.
+     */
+    synchronized void putMeta(String id, byte[] md5, long size, long modified, long version)
+    {
+        int n = tree.find(id);
+        if(n != NONE) tree.setMeta(n, md5, size, modified, version);
+    }
+    
+    public Optional<FileMeta> getMeta(String fileId)
+    {
+        int n = tree.find(fileId);
+        return n != NONE && tree.hasMeta(n) ? Optional.of(meta(n)) : Optional.empty();
+    }
+    
+    public Optional<FileMeta> getMeta(Path localPath)
+    {
+        int n = find(localPath);
+        return n != NONE && tree.hasMeta(n) ? Optional.of(meta(n)) : Optional.empty();
+    }
+    
+    Optional<FileMeta> getMeta(int node)
+    {
+        return tree.hasMeta(node) ? Optional.of(meta(node)) : Optional.empty();
+    }
+    
+    private FileMeta meta(int n)
+    {
+        byte[] md5 = tree.md5(n);
+        return new FileMeta(md5 != null ? DatatypeConverter.printHexBinary(md5).toLowerCase() : null, 
+                                tree.size(n), tree.modified(n), tree.version(n));
+    }
+    
+    private Path dirPath(int dir, Map<Integer, Path> dirPaths)
+    {
+        Path p = dirPaths.get(dir);
+        if(p == null) dirPaths.put(dir, p = dirPath(tree.parent(dir), dirPaths).resolve(tree.title(dir)));
+        return p;
+    }
+    
+    private int depth(int n)
+    {
+        int d = 0;
+        for(; tree.parent(n) != NONE; n = tree.parent(n)) d++;
+        return d;
+    }
+    
+    /**
+     * Adds or moves a single node, used when replaying the journal.
+     */
+    synchronized void put(String id, String parentId, String title)
+    {
+        int par = parentNode(parentId);
+        if(par == NONE)
+        {
+            log.warning("Could not find parent " + parentId + " of " + id + ", title=" + title);
+            return;
+        }
+        int node = tree.find(id);
+        if(node == NONE)
+            tree.add(id, title, par);
+        else
+        {
+            tree.setTitle(node, title);
+            if(tree.parent(node) != par) tree.attach(node, par);
+        }
+    }
+    
+    synchronized void remove(String id)
+    {
+        int node = tree.find(id);
+        if(node != NONE) detach(node);
+    }
+    
+    private int parentNode(String parentId)
+    {
+        return "root".equals(parentId) ? tree.root() : tree.find(parentId);
+    }
+    
     private boolean isDir(File f)
     {
         return f.getMimeType().equals(Driver.MIME_TYPE_DIR);
@@ -265,25 +520,61 @@ public class RemoteIndex
         entryById.put(fileId, fe);
     }*/
 
-    public List<Path> remove(Stream<String> fileIds)
+    public synchronized List<Path> remove(Stream<String> fileIds)
     {
-        /*if(fileIds.map(f -> remove(f)).reduce(false, (a, e) -> a | e))
-            dirIdPathMapCache.clear();*/
-        List<Path> paths = tree.get().find(Paths.get(""), fileIds.collect(Collectors.toSet()))
-                .map(e -> e.getValue().getValue()).collect(Collectors.toList());
-        removePaths(paths.stream());
-        return paths;
+        //resolve all paths before detaching anything, a removed dir would hide the paths of its removed children
+        List<Entry<Integer, Path>> found = fileIds.distinct().map(tree::find).filter(n -> n != NONE)
+                .map(n -> path(n).<Entry<Integer, Path>>map(p -> new SimpleImmutableEntry<>(n, p)))
+                .filter(oe -> oe.isPresent()).map(oe -> oe.get())
+                .collect(Collectors.toList());
+        found.forEach(e -> { if(tree.isLive(e.getKey())) detach(e.getKey()); });
+        return found.stream().map(e -> e.getValue()).collect(Collectors.toList());
     }
 
-    public List<Optional<String>> removePaths(Stream<Path> paths)
+    public synchronized List<Optional<String>> removePaths(Stream<Path> paths)
     {
-        Node t = tree.get();
-        return paths.map(p -> new SimpleImmutableEntry<>(t.find(p.getParent()), p.getFileName().toString()))
-             .map(sie -> new SimpleImmutableEntry<>(sie.getKey().orElse(t), sie.getValue()))
-             .map(sie -> sie.getKey().removeByTitle(sie.getValue()).<String>map(n -> n.id))
+        return paths.map(p -> find(p))
+             .map(n -> 
+                 {
+                     if(n == NONE) return Optional.<String>empty();
+                     String id = tree.id(n);
+                     detach(n);
+                     return Optional.of(id);
+                 })
              .collect(Collectors.toList());
     }
     
+    /**
+     * Removes the node along with its subtree, the nodes in it that were in the index before the current batch 
+     * are journaled as removed, the others were never journaled.
+     */
+    private void drop(int node, IntPredicate isNew)
+    {
+        if(journal != null)
+        {
+            ArrayDeque<Integer> pending = new ArrayDeque<>();
+            pending.push(node);
+            while(!pending.isEmpty())
+            {
+                int n = pending.pop();
+                //the removal of a node takes its subtree along on replay
+                if(!isNew.test(n))
+                    journal.remove(tree.id(n));
+                else
+                    for(int ch = tree.firstChild(n); ch != NONE; ch = tree.nextSibling(ch))
+                        pending.push(ch);
+            }
+        }
+        tree.remove(node);
+    }
+    
+    private void detach(int node)
+    {
+        String id = tree.id(node);
+        log.fine(() -> "Removing node " + id);
+        tree.remove(node);
+        if(journal != null) journal.remove(id);
+    }
     
     /*private boolean remove(String fileId)
     {
@@ -294,11 +585,28 @@ public class RemoteIndex
     {
         /*return entryById.entrySet().stream().filter(e -> localPath.contains(e.getValue().getLocalPath(entryById, dirIdPathMapCache)))
                                         .collect(Collectors.toMap(e -> e.getValue().getLocalPath(entryById, dirIdPathMapCache), e -> e.getKey()));*/
-        return localPath.map(p -> new SimpleImmutableEntry<Path, Optional<String>>(p,  tree.get().find(p).map(n -> n.id)))
-                        .filter(sie -> sie.getValue().isPresent())
-                        .collect(Collectors.toMap(sie -> sie.getKey(), sie -> sie.getValue().get()));
+        return localPath.map(p -> new SimpleImmutableEntry<Path, Integer>(p, find(p)))
+                        .filter(sie -> sie.getValue() != NONE)
+                        .collect(Collectors.toMap(sie -> sie.getKey(), sie -> tree.id(sie.getValue())));
     }
 
+    /**
+     * @return true if the file, or the alias 'root', is in the index
+     */
+    public boolean contains(String fileId)
+    {
+        return parentNode(fileId) != NONE;
+    }
+    
+    /**
+     * @return the id of the folder the file is in, none for the root and for files not in the index
+     */
+    Optional<String> getParentId(String fileId)
+    {
+        int n = tree.find(fileId);
+        return n == NONE || tree.parent(n) == NONE ? Optional.empty() : Optional.of(tree.id(tree.parent(n)));
+    }
+    
     public Optional<Path> getLocalPath(String fileId)
     {
         return getLocalPath(Collections.singleton(fileId)).findFirst().map(oe -> oe.getValue());
@@ -307,8 +615,9 @@ public class RemoteIndex
 
     public Stream<Entry<String, Path>> getLocalPath(Set<String> fileIds)
     {
-        return tree.get().find(Paths.get(""), new HashSet<>(fileIds))
-                    .map(e -> new SimpleImmutableEntry<>(e.getKey(), e.getValue().getValue()));
+        return fileIds.stream().filter(id -> tree.find(id) != NONE)
+                    .map(id -> path(tree.find(id)).<Entry<String, Path>>map(p -> new SimpleImmutableEntry<>(id, p)))
+                    .filter(oe -> oe.isPresent()).map(oe -> oe.get());
         //return Optional.ofNullable(entryById.get(fileId)).map(fe -> fe.getLocalPath(entryById, dirIdPathMapCache));
     }
     
@@ -319,7 +628,13 @@ public class RemoteIndex
 
     public void setLastSyncTime()
     {
-        this.lastSyncTimeEpochMillis = System.currentTimeMillis();
+        setLastSyncTime(System.currentTimeMillis());
+    }
+
+    synchronized void setLastSyncTime(long lastSyncTimeEpochMillis)
+    {
+        this.lastSyncTimeEpochMillis = lastSyncTimeEpochMillis;
+        if(journal != null) journal.syncTime(lastSyncTimeEpochMillis);
     }
 
     public long getLastRevisionId()
@@ -327,9 +642,10 @@ public class RemoteIndex
         return lastRevisionId;
     }
 
-    public void setLastRevisionId(Long lastRevisionId)
+    public synchronized void setLastRevisionId(Long lastRevisionId)
     {
         this.lastRevisionId = lastRevisionId;
+        if(journal != null) journal.revision(lastRevisionId);
     }
 
     @Override
@@ -341,243 +657,348 @@ public class RemoteIndex
     public int size()
     {
         //return entryById.size();
-        return (int)tree.get().nodes().count();
+        return tree.size();
     }
     
     public Stream<String> fileIds()
     {
-        return tree.get().nodes().map(n -> n.id);
+        return tree.nodes().mapToObj(tree::id);
         //return entryById.keySet().stream();
     }
 
+    CompactTree tree()
+    {
+        return tree;
+    }
+
     public Stream<Entry<Path, String>> localPaths()
     {
-        return tree.get().paths(Paths.get(""));
+        return walk(false).map(c -> new SimpleImmutableEntry<>(c.path(), c.id()));
         
         //return entryById.values().stream().map(fe -> fe.getLocalPath(entryById, dirIdPathMapCache));
     }
     
-    public static class Node
+    /**
+     * @return the entry at the path followed by all of the entries below it, none if the path is not in the index
+     */
+    public Stream<Entry<Path, String>> localPaths(Path under)
     {
-        @Key("i")
-        private String id;
-        
-        //@Key("f")
-        private FileEntry entry;
+        int n = find(under);
+        return n == NONE ? Stream.empty() : localPaths(n, under);
+    }
+    
+    /**
+     * @return the entry of the node at the given path followed by all of the entries below it
+     */
+    Stream<Entry<Path, String>> localPaths(int n, Path under)
+    {
+        List<Entry<Path, String>> found = new ArrayList<>();
+        ArrayDeque<Entry<Integer, Path>> pending = new ArrayDeque<>();
+        pending.push(new SimpleImmutableEntry<>(n, under));
+        while(!pending.isEmpty())
+        {
+            Entry<Integer, Path> e = pending.pop();
+            found.add(new SimpleImmutableEntry<>(e.getValue(), tree.id(e.getKey())));
+            for(int ch = tree.firstChild(e.getKey()); ch != NONE; ch = tree.nextSibling(ch))
+                pending.push(new SimpleImmutableEntry<>(ch, e.getValue().resolve(tree.title(ch))));
+        }
+        return found.stream();
+    }
+    
+    /**
+     * Walks the index in pre-order, starting with the root. Every element of the stream is the same {@link Cursor},
+     * positioned on the current entry, so it must not be kept past the call it is passed to. 
+     */
+    public Stream<Cursor> walk(boolean parallel)
+    {
+        return StreamSupport.stream(new Cursor(tree.root()), parallel);
+    }
+    
+    /**
+     * Iterative pre-order traversal that keeps the relative path of the current entry in a reused buffer, 
+     * a {@link Path} is only created by {@link #path()}. 
+     * As a {@link Spliterator} it hands off pending subtrees, so a parallel stream fans out across subtrees.
+     */
+    public final class Cursor implements Spliterator<Cursor>
+    {
+        private int[] nodes = new int[64];
+        private int[] depths = new int[64];
+        private int top;
+        private long estimate;
         
-        @Key("t")
-        private String title;
+        private int node = NONE;
+        private int depth;
+        private boolean descend;
         
-        @Key("es")
-        private HashSet<Node> entries;
+        private int[] pathNodes = new int[16];
+        private int[] pathLength = new int[16];
+        private final StringBuilder path = new StringBuilder(256);
         
-        public Node()
+        private Cursor(int root)
         {
-            
+            this((long)tree.size());
+            push(root, 0);
         }
         
-        void setEntry(File file)
+        private Cursor(long estimate)
         {
-            title = file.getTitle();
+            this.estimate = estimate;
+            Arrays.fill(pathNodes, NONE);
         }
-
-        Node(String id, File entry)
-        {
-            this.id = id;
-            //this.entry = entry;
-            this.title = entry.getTitle();
+        
+        /**
+         * Moves to the next entry, the children of the current one come next unless {@link #skipChildren()} was called. 
+         */
+        public boolean next()
+        {
+            if(node != NONE && descend)
+                for(int ch = tree.firstChild(node); ch != NONE; ch = tree.nextSibling(ch))
+                    push(ch, depth + 1);
+            if(top == 0)
+            {
+                node = NONE;
+                return false;
+            }
+            int e = nodes[--top];
+            //an entry pushed as ~node was split off from its children, which are already pending
+            descend = e >= 0;
+            node = descend ? e : ~e;
+            depth = depths[top];
+            moveTo(node, depth);
+            return true;
         }
-
-        private String getTitle()
+        
+        public void skipChildren()
         {
-            return title;
+            descend = false;
         }
         
-        Optional<Node> removeByTitle(String title)
+        public String id()
         {
-            Optional<Node> node = getEntries().flatMap(e -> e.stream().filter(ch -> ch.getTitle().equals(title)).findFirst());
-            node.ifPresent(n -> remove(n));
-            return node;
+            return tree.id(node);
         }
-
-        boolean remove(Node match)
+        
+        public String title()
         {
-            log.fine("Removing node "  + match);
-            return getEntries().map(e -> e.remove(match)).orElse(false);
+            return tree.title(node);
         }
-
-        boolean add(Node me)
+        
+        /**
+         * @return 0 for the root
+         */
+        public int depth()
         {
-            if(entries == null) entries = new HashSet<>();
-            if(!entries.add(me))
-                entries.stream().filter(ch -> ch.equals(me)).findFirst().ifPresent(n -> n.title = me.getTitle());
-            return true;
+            return depth;
         }
         
-        Optional<Node> find(Path path)
+        public boolean hasChildren()
         {
-            int count;
-            if(path == null || (count = path.getNameCount()) == 0) return Optional.empty();
-            Optional<Node> child = getEntries().flatMap(e -> 
-                                e.stream().filter(ch -> ch.getTitle().equals(path.getName(0).toString())).findFirst());
-            if(count == 1) return child;
-            return child.flatMap(ch -> ch.find(path.subpath(1, count)));
+            return tree.firstChild(node) != NONE;
         }
-
-        /*Stream<Entry<Path, Optional<Node>>> find(Set<Path> paths)
+        
+        /**
+         * @return the relative path of the current entry, only valid until the next move 
+         */
+        public CharSequence relativePath()
         {
-            int count = paths.getNameCount();
-            if(count == 0) return Optional.empty();
-            Optional<Node> child = getEntries().flatMap(e -> 
-                                e.stream().filter(ch -> ch.getTitle().equals(paths.getName(0).toString())).findFirst());
-            if(count == 1) return child;
-            return child.flatMap(ch -> ch.find(paths.subpath(1, count)));
-        }*/
+            return path;
+        }
         
-        private Optional<HashSet<Node>> getEntries()
+        public Path path()
         {
-            return Optional.ofNullable(entries);
+            return Paths.get(path.toString());
         }
         
-        Optional<Entry<Node, Path>> find(Path parent, String fileId)
+        private void push(int n, int d)
         {
-            /*Path curr = parent.resolve(getTitle());
-            if(id.equals(fileId))
-                return Optional.of(new SimpleImmutableEntry<>(this, curr));
-            
-            return getEntries().flatMap(e -> e.stream().map(ch -> ch.find(curr, fileId))
-                                                .filter(oe -> oe.isPresent()).map(oe -> oe.get()).findFirst());*/
-            
-            /*for(Node ch : entries)
+            if(top == nodes.length)
             {
-                Optional<Entry<Node, Path>> match = ch.find(curr, fileId);
-                if(match.isPresent()) return match;
+                nodes = Arrays.copyOf(nodes, top << 1);
+                depths = Arrays.copyOf(depths, top << 1);
             }
-            return Optional.empty();*/
-            return find(parent, Stream.of(fileId).collect(Collectors.toSet()))
-                    .findFirst().map(oe -> oe.getValue());
+            nodes[top] = n;
+            depths[top++] = d;
         }
-
-        Stream<Entry<String, Entry<Node, Path>>> find(Path parent, Set<String> fileIds)
+        
+        private void moveTo(int n, int d)
         {
-            Path curr = parent.resolve(getTitle());
-            Stream<Entry<String, Entry<Node, Path>>> res = fileIds.remove(id) ? 
-                Stream.of(new SimpleImmutableEntry<>(id, new SimpleImmutableEntry<>(this, curr))) : Stream.empty();
-            
-            if(fileIds.isEmpty() || entries == null) return res;
-            
-            return Stream.concat(res, entries.stream().flatMap(ch -> ch.find(curr, fileIds)));
+            if(d >= pathNodes.length)
+            {
+                int len = Math.max(d + 1, pathNodes.length << 1);
+                pathNodes = Arrays.copyOf(pathNodes, len);
+                pathLength = Arrays.copyOf(pathLength, len);
+            }
+            if(d > 0 && pathNodes[d - 1] != tree.parent(n))
+            {
+                //jumped to another branch, only after a split: rebuild the prefix from the parent links
+                int p = tree.parent(n);
+                for(int i = d - 1; i >= 0; i--, p = tree.parent(p)) pathNodes[i] = p;
+                path.setLength(0);
+                for(int i = 1; i < d; i++) 
+                {
+                    appendTitle(pathNodes[i], i);
+                    pathLength[i] = path.length();
+                }
+            }
+            path.setLength(d > 0 ? pathLength[d - 1] : 0);
+            if(d > 0) appendTitle(n, d);
+            pathNodes[d] = n;
+            pathLength[d] = path.length();
         }
         
-        Stream<Entry<Path, String>> paths(Path parent)
+        private void appendTitle(int n, int d)
         {
-            Path curr = parent.resolve(getTitle());
-            return Stream.concat(Stream.of(new SimpleImmutableEntry<>(curr, id)), 
-                    getEntries().map(e -> e.stream().<Entry<Path, String>>flatMap(ch -> ch.paths(curr))).orElse(Stream.empty()));
+            if(d > 1) path.append(SEPARATOR);
+            path.append(tree.title(n));
         }
 
-        Stream<Node> nodes()
+        @Override
+        public boolean tryAdvance(Consumer<? super Cursor> action)
         {
-            return Stream.concat(Stream.of(this), 
-                    getEntries().map(e -> e.stream().<Node>flatMap(ch -> ch.nodes())).orElse(Stream.empty()));
+            if(!next()) return false;
+            action.accept(this);
+            return true;
         }
 
-        Stream<Entry<Node, Path>> nodes(Path parent)
-        {
-            Path curr = parent.resolve(getTitle());
-            return Stream.concat(Stream.of(new SimpleImmutableEntry<>(this, curr)), 
-                    getEntries().map(e -> e.stream().<Entry<Node, Path>>flatMap(ch -> ch.nodes(curr))).orElse(Stream.empty()));
-        }
-        
         @Override
-        public int hashCode()
+        public Spliterator<Cursor> trySplit()
         {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((id == null) ? 0 : id.hashCode());
-            return result;
+            if(node != NONE && descend)
+            {
+                for(int ch = tree.firstChild(node); ch != NONE; ch = tree.nextSibling(ch))
+                    push(ch, depth + 1);
+                descend = false;
+            }
+            if(top == 1 && nodes[0] >= 0 && tree.firstChild(nodes[0]) != NONE)
+            {
+                //a single pending subtree: make its children splittable, the node itself stays on top
+                int n = nodes[0], d = depths[0];
+                top = 0;
+                for(int ch = tree.firstChild(n); ch != NONE; ch = tree.nextSibling(ch))
+                    push(ch, d + 1);
+                push(~n, d);
+            }
+            if(top < 2) return null;
+            int half = top >> 1;
+            Cursor split = new Cursor(estimate >>>= 1);
+            for(int i = 0; i < half; i++) split.push(nodes[i], depths[i]);
+            System.arraycopy(nodes, half, nodes, 0, top - half);
+            System.arraycopy(depths, half, depths, 0, top - half);
+            top -= half;
+            return split;
         }
 
         @Override
-        public boolean equals(Object obj)
+        public long estimateSize()
         {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Node other = (Node) obj;
-            if (id == null)
-            {
-                if (other.id != null)
-                    return false;
-            }
-            else if (!id.equals(other.id))
-                return false;
-            return true;
+            return estimate;
         }
 
-        
         @Override
-        public String toString()
+        public int characteristics()
         {
-            return "Node [id=" + id + ", title=" + getTitle() + "]";
+            return NONNULL;
         }
     }
-
-    private static class TreeBuilder
+    
+    /**
+     * Builds the path by walking up the parent links, empty if the node is not attached under the root. 
+     */
+    private Optional<Path> path(int node)
+    {
+        ArrayDeque<String> titles = new ArrayDeque<>();
+        int n = node;
+        for(; tree.parent(n) != NONE; n = tree.parent(n))
+            titles.push(tree.title(n));
+        if(n != tree.root()) return Optional.empty();
+        if(titles.isEmpty()) return Optional.of(Paths.get(""));
+        return Optional.of(Paths.get(titles.pop(), titles.toArray(new String[titles.size()])));
+    }
+    
+    private int find(Path path)
     {
-        private Node root;
-        private final HashMap<String, Node> map = new HashMap<>();
+        if(path == null || path.getNameCount() == 0) return NONE;
+        int n = tree.root();
+        for(Path name : path)
+            if((n = tree.child(n, name.toString())) == NONE) return NONE;
+        return n;
+    }
 
-        TreeBuilder(Map<String, FileEntry> entryById)
-        {
-            entryById.entrySet().stream().forEach(e -> addNode(entryById, e.getKey(), e.getValue()));
+    /**
+     * Builds the tree in two phases: {@link #add} only registers the nodes, {@link #link()} then puts every one 
+     * under its parent in a single pass, so the order of the listing does not matter.
+     */
+    private class TreeBuilder
+    {
+        private int[] nodes = new int[1 << 10];
+        private String[] parentIds = new String[1 << 10];
+        private int count;
+        private final BitSet created = new BitSet();
+        
+        int add(String id, String title, String parentId)
+        {
+            int n = tree.find(id);
+            if(n == NONE) 
+                created.set(n = tree.add(id, title, NONE));
+            else
+                tree.setTitle(n, title);
+            if(count == nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes, count << 1);
+                parentIds = Arrays.copyOf(parentIds, count << 1);
+            }
+            nodes[count] = n;
+            parentIds[count++] = parentId;
+            return n;
         }
         
-        private Node addNode(Map<String, FileEntry> entryById, String id, FileEntry f)
-        {
-            Node me = get(id);
-            if(me == null)
+        /**
+         * @return the ids of the nodes whose parent is unknown, they are dropped along with whatever was put under them 
+         */
+        List<String> link()
+        {
+            List<Integer> orphans = new ArrayList<>();
+            int[] pars = new int[count];
+            for(int i = 0; i < count; i++)
             {
-                me = new Node(id, new File().setTitle(f.title));
-                put(id, me);
-                if(f.parentId != null)
-                    Optional.ofNullable(get(f.parentId)).orElseGet(() -> 
-                                        addNode(entryById, f.parentId, Optional.ofNullable(entryById.get(f.parentId))
-                                                        .orElseGet(() -> new FileEntry("", null))))
-                            .add(me); 
+                int n = nodes[i];
+                pars[i] = parentIds[i] == null ? NONE : parentNode(parentIds[i]);
+                if(pars[i] == NONE)
+                {
+                    if(n != tree.root()) orphans.add(n);
+                }
+                //taken out first, as in add
+                else if(tree.parent(n) != pars[i])
+                    tree.detach(n);
+            }
+            for(int i = 0; i < count; i++)
+            {
+                int n = nodes[i], par = pars[i];
+                if(par == NONE || tree.parent(n) == par) continue;
+                if(tree.isUnder(par, n))
+                    orphans.add(n);
                 else
-                    setRoot(me);
+                    tree.attach(n, par);
             }
-            return me;
+            List<String> ids = new ArrayList<>();
+            for(int n : orphans)
+                if(tree.isLive(n))
+                {
+                    ids.add(tree.id(n));
+                    drop(n, created::get);
+                }
+            return ids;
         }
-
-        private Node get(String id)
-        {
-            return map.get(id);
-        }
-
-        private void put(String id, Node me)
-        {
-            map.put(id, me);
-        }
-
-        private void setRoot(Node me)
-        {
-            root = me;
-        }
-
-        Node getRoot()
+        
+        IntStream nodes()
         {
-            return root;
+            return Arrays.stream(nodes, 0, count).filter(n -> tree.isLive(n));
         }
     }
     
     public boolean exists(Path path)
     {
-        boolean ex = tree.get().find(path).map(p -> true).orElse(false);
+        boolean ex = find(path) != NONE;
         //return localPaths().filter(p -> p.equals(path)).findFirst().map(p -> true).orElse(false);
         if(!ex) log.fine("'" + path + "' does not exist");
         return ex;
@@ -587,9 +1008,4 @@ public class RemoteIndex
     {
         return file.getParents().stream().findFirst().map(pr -> pr.getId()).orElse("root");
     }
-    
-    void syncTitle()
-    {
-        this.tree.get().nodes().filter(n -> n.title == null && n.entry != null).forEach(n -> n.title = n.entry.title);
-    }
 }
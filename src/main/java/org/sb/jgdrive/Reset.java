@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -47,6 +46,7 @@ public class Reset implements Cmd
                 log.info("Deleting '" + p + "'");
                 Files.deleteIfExists(p);
         }));
+        driver.watchSynced(lc.getWatchSeq());
     }
     
     private void moveFile(Path tmpPath, Path lp) throws IOException
@@ -58,7 +58,7 @@ public class Reset implements Cmd
             Files.createDirectories(parent);
         }
         log.info("Restoring '" + lp + "'");
-        Files.move(tmpPath, lp, StandardCopyOption.REPLACE_EXISTING);
+        IndexFile.move(tmpPath, lp);
     }
     
     private boolean createDir(Path p) throws IOException
@@ -0,0 +1,182 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Downloads the content of a file into a partial file named after its id and md5, a download that broke off
+ * is continued from the bytes already on disk with a range request, by a retry or by a later run. The retries of a
+ * download back off on their own, a connection that broke says nothing about the rate of the other requests.
+ */
+final class ResumableDownload
+{
+    private static final Logger log = Logger.getLogger(ResumableDownload.class.getPackage().getName());
+    private static final int SC_RANGE_NOT_SATISFIABLE = 416;
+
+    private final Drive drive;
+    private final File file;
+    private final Path part;
+    private final MessageDigest md5;
+    private final byte[] buf = new byte[1 << 16];
+
+    private ResumableDownload(Drive drive, File file, Path partialDir) throws IOException
+    {
+        this.drive = drive;
+        this.file = file;
+        this.part = partialDir.resolve(file.getId() + "-" + file.getMd5Checksum() + ".part");
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Failed to create MD5 digest", e);
+        }
+    }
+
+    /**
+     * @return the downloaded and verified content, with the remote modification time
+     */
+    static Path download(Drive drive, File file, Path partialDir, int retries) throws IOException
+    {
+        Files.createDirectories(partialDir);
+        return new ResumableDownload(drive, file, partialDir).run(retries);
+    }
+
+    private Path run(int retries) throws IOException
+    {
+        dropStale();
+        for(int attempt = 0; ; attempt++)
+        {
+            long offset = resumeDigest();
+            try
+            {
+                fetch(offset);
+                break;
+            }
+            catch(HttpResponseException e)
+            {
+                if(e.getStatusCode() != SC_RANGE_NOT_SATISFIABLE) throw e;
+                log.fine(() -> "Range not satisfiable for " + file.getId() + ", starting over");
+                Files.deleteIfExists(part);
+                if(attempt >= retries) throw e;
+            }
+            catch(IOException e)
+            {
+                if(attempt >= retries) throw e;
+                long delay = RateLimiter.backoffMillis(attempt + 1);
+                log.warning("Download of " + file.getId() + " broke off at " + (Files.exists(part) ? Files.size(part) : 0) 
+                                + " bytes, resuming in " + delay + " ms: " + e);
+                pause(delay);
+            }
+        }
+        String actual = DatatypeConverter.printHexBinary(md5.digest()).toLowerCase();
+        if(!actual.equalsIgnoreCase(file.getMd5Checksum()))
+        {
+            Files.deleteIfExists(part);
+            throw new IOException("Checksum verification failed for "
+                        + "id=" + file.getId() + ", title=" + file.getTitle() + ", expected=" + file.getMd5Checksum() + ", actual=" + actual);
+        }
+        Files.setLastModifiedTime(part, FileTime.fromMillis(file.getModifiedDate().getValue()));
+        log.fine(() -> "Downloaded " + file.getId() + " to " + part);
+        return part;
+    }
+
+    private static void pause(long millis) throws InterruptedIOException
+    {
+        try
+        {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to resume a download");
+        }
+    }
+
+    /**
+     * Partial downloads of older versions of the file cannot be resumed.
+     */
+    private void dropStale() throws IOException
+    {
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(part.getParent(), file.getId() + "-*.part"))
+        {
+            for(Path p : ds)
+                if(!p.equals(part)) Files.deleteIfExists(p);
+        }
+    }
+
+    /**
+     * @return the number of bytes already downloaded, all of them are fed to the digest
+     */
+    private long resumeDigest() throws IOException
+    {
+        md5.reset();
+        if(Files.notExists(part)) return 0;
+        long offset = 0;
+        try(InputStream in = Files.newInputStream(part))
+        {
+            for(int r; (r = in.read(buf)) != -1; offset += r)
+                md5.update(buf, 0, r);
+        }
+        return offset;
+    }
+
+    private void fetch(long offset) throws IOException
+    {
+        Long size = file.getFileSize();
+        if(offset > 0 && size != null && offset == size) return;
+        if(size != null && Files.getFileStore(part.getParent()).getUsableSpace() < size - offset)
+            throw new IOException("Not enough space left to download " + (size - offset) + " bytes of " + file.getTitle()
+                                    + " to " + part.getParent());
+        Drive.Files.Get get = drive.files().get(file.getId());
+        if(offset > 0)
+        {
+            get.getRequestHeaders().setRange("bytes=" + offset + "-");
+            log.info("Resuming download of " + file.getTitle() + " at " + offset + " bytes");
+        }
+        // uses alt=media query parameter to request content
+        HttpResponse resp = get.executeMedia();
+        try(InputStream in = resp.getContent();
+            FileChannel fc = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            if(offset > 0 && resp.getStatusCode() != 206)
+            {
+                log.fine(() -> "Range ignored for " + file.getId() + ", starting over");
+                md5.reset();
+                offset = 0;
+            }
+            fc.truncate(offset).position(offset);
+            for(int r; (r = in.read(buf)) != -1;)
+            {
+                md5.update(buf, 0, r);
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, r);
+                while(bb.hasRemaining()) fc.write(bb);
+            }
+        }
+        finally
+        {
+            resp.disconnect();
+        }
+    }
+}
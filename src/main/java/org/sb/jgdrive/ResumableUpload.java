@@ -0,0 +1,302 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Uploads the content of a file with the resumable upload protocol, in chunks of a multiple of 256 KB.
+ * The session uri is kept under the session dir until the upload completes, so an upload that broke off
+ * is continued from the last acknowledged byte, by a retry or by a later run, as long as the local file
+ * still has the same size and modification time.
+ */
+final class ResumableUpload
+{
+    private static final Logger log = Logger.getLogger(ResumableUpload.class.getPackage().getName());
+    private static final int CHUNK_GRANULARITY = 256 << 10;
+    private static final int SC_RESUME_INCOMPLETE = 308;
+
+    private final Drive drive;
+    private final String fileId;
+    private final File metadata;
+    private final String mimeType;
+    private final Path local;
+    private final String fields;
+    private final Path session;
+    private final int chunkSize;
+    private final MessageDigest md5;
+    private long size, modified;
+
+    /**
+     * @param fileId the file to update, null to insert a new one
+     * @param metadata of the inserted file, null for updates
+     */
+    ResumableUpload(Drive drive, String fileId, File metadata, String mimeType, Path local, String fields,
+                        Path sessionDir, int chunkSize) throws IOException
+    {
+        this.drive = drive;
+        this.fileId = fileId;
+        this.metadata = metadata;
+        this.mimeType = mimeType;
+        this.local = local;
+        this.fields = fields;
+        this.chunkSize = Math.max(CHUNK_GRANULARITY, chunkSize / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+        this.session = sessionDir.resolve(sessionKey() + ".properties");
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Failed to create MD5 digest", e);
+        }
+    }
+
+    /**
+     * An insert is identified by the folder and title it goes to, an update by the id of the file.
+     */
+    private String sessionKey() throws IOException
+    {
+        if(fileId != null) return "update-" + fileId;
+        String parent = metadata.getParents() != null && !metadata.getParents().isEmpty()
+                                ? metadata.getParents().get(0).getId() : "root";
+        try
+        {
+            byte[] key = MessageDigest.getInstance("MD5").digest((parent + "/" + metadata.getTitle()).getBytes(StandardCharsets.UTF_8));
+            return "insert-" + DatatypeConverter.printHexBinary(key).toLowerCase();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Failed to create MD5 digest", e);
+        }
+    }
+
+    /**
+     * @return the uploaded file, its md5 verified against the local content
+     */
+    File run(int retries) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(local, BasicFileAttributes.class);
+        size = attrs.size();
+        modified = attrs.lastModifiedTime().toMillis();
+        Files.createDirectories(session.getParent());
+
+        String uri = savedSession();
+        long offset = -1;
+        if(uri != null)
+        {
+            offset = status(uri);
+            if(offset >= 0) log.info("Resuming upload of '" + local + "' at " + offset + " bytes");
+        }
+        if(offset < 0)
+        {
+            uri = start();
+            offset = 0;
+        }
+        digest(offset);
+
+        File file = null;
+        for(int attempt = 0; file == null; )
+        {
+            try
+            {
+                file = upload(uri, offset);
+            }
+            catch(IOException e)
+            {
+                if(!isRetryable(e) || ++attempt > retries) throw e;
+                long acked = status(uri);
+                if(acked < 0)
+                {
+                    log.warning("Upload session of '" + local + "' expired, starting over: " + e);
+                    uri = start();
+                    acked = 0;
+                }
+                else
+                    log.warning("Upload of '" + local + "' broke off at " + acked + " bytes, resuming: " + e);
+                digest(acked);
+                offset = acked;
+            }
+        }
+        Files.deleteIfExists(session);
+
+        String actual = DatatypeConverter.printHexBinary(md5.digest()).toLowerCase();
+        if(!actual.equalsIgnoreCase(file.getMd5Checksum()))
+            throw new IOException("Failed to verify md5 checksum for id=" + file.getId() + ", path=" + local
+                                + ", expected=" + actual + ", found=" + file.getMd5Checksum());
+        return file;
+    }
+
+    /**
+     * @return the uri of a session started for the same content, null if there is none
+     */
+    private String savedSession() throws IOException
+    {
+        if(Files.notExists(session)) return null;
+        Properties props = new Properties();
+        try(InputStream is = Files.newInputStream(session))
+        {
+            props.load(is);
+        }
+        if(String.valueOf(size).equals(props.getProperty("size"))
+                && String.valueOf(modified).equals(props.getProperty("modified")))
+            return props.getProperty("uri");
+        log.fine(() -> "Dropping upload session of a previous version of '" + local + "'");
+        Files.deleteIfExists(session);
+        return null;
+    }
+
+    private String start() throws IOException
+    {
+        GenericUrl url = new GenericUrl(drive.getRootUrl() + "upload/" + drive.getServicePath()
+                                    + "files" + (fileId != null ? "/" + fileId : ""));
+        url.set("uploadType", "resumable");
+        url.set("fields", fields);
+        HttpContent content = metadata != null ? new JsonHttpContent(drive.getJsonFactory(), metadata) : new EmptyContent();
+        HttpRequest req = drive.getRequestFactory().buildRequest(fileId != null ? "PUT" : "POST", url, content);
+        req.getHeaders().set("X-Upload-Content-Type", mimeType);
+        req.getHeaders().set("X-Upload-Content-Length", size);
+        HttpResponse resp = req.execute();
+        String uri;
+        try
+        {
+            uri = resp.getHeaders().getLocation();
+        }
+        finally
+        {
+            resp.disconnect();
+        }
+        if(uri == null) throw new IOException("No upload session returned for '" + local + "'");
+
+        Properties props = new Properties();
+        props.setProperty("uri", uri);
+        props.setProperty("size", String.valueOf(size));
+        props.setProperty("modified", String.valueOf(modified));
+        try(OutputStream os = Files.newOutputStream(session))
+        {
+            props.store(os, local.toString());
+        }
+        return uri;
+    }
+
+    /**
+     * @return the number of bytes the session has received, -1 if the session is gone
+     */
+    private long status(String uri) throws IOException
+    {
+        HttpRequest req = drive.getRequestFactory().buildPutRequest(new GenericUrl(uri), new EmptyContent());
+        req.getHeaders().setContentRange("bytes */" + size);
+        req.setThrowExceptionOnExecuteError(false);
+        HttpResponse resp = req.execute();
+        try
+        {
+            if(resp.getStatusCode() == SC_RESUME_INCOMPLETE) return acknowledged(resp);
+            if(resp.isSuccessStatusCode()) return size;
+            if(resp.getStatusCode() == 404 || resp.getStatusCode() == 410) return -1;
+            throw new HttpResponseException(resp);
+        }
+        finally
+        {
+            resp.disconnect();
+        }
+    }
+
+    private File upload(String uri, long offset) throws IOException
+    {
+        byte[] chunk = new byte[(int)Math.min(chunkSize, Math.max(size - offset, 0))];
+        try(FileChannel fc = FileChannel.open(local, StandardOpenOption.READ))
+        {
+            while(true)
+            {
+                int len = (int)Math.min(chunk.length, size - offset);
+                ByteBuffer bb = ByteBuffer.wrap(chunk, 0, len);
+                while(bb.hasRemaining())
+                    if(fc.read(bb, offset + bb.position()) < 0)
+                        throw new IOException("'" + local + "' was truncated during its upload");
+                HttpRequest req = drive.getRequestFactory().buildPutRequest(new GenericUrl(uri),
+                                                                new ByteArrayContent(mimeType, chunk, 0, len));
+                req.getHeaders().setContentRange(len > 0 ? "bytes " + offset + "-" + (offset + len - 1) + "/" + size
+                                                         : "bytes */" + size);
+                req.setThrowExceptionOnExecuteError(false);
+                //a failed chunk is resumed from the status of the session
+                req.setNumberOfRetries(0);
+                req.setParser(drive.getObjectParser());
+                HttpResponse resp = req.execute();
+                try
+                {
+                    if(resp.getStatusCode() == SC_RESUME_INCOMPLETE)
+                    {
+                        long acked = acknowledged(resp);
+                        md5.update(chunk, 0, (int)(acked - offset));
+                        offset = acked;
+                        continue;
+                    }
+                    if(!resp.isSuccessStatusCode()) throw new HttpResponseException(resp);
+                    md5.update(chunk, 0, len);
+                    return resp.parseAs(File.class);
+                }
+                finally
+                {
+                    resp.disconnect();
+                }
+            }
+        }
+    }
+
+    private static boolean isRetryable(IOException e)
+    {
+        if(!(e instanceof HttpResponseException)) return true;
+        int status = ((HttpResponseException)e).getStatusCode();
+        return status >= 500 || status == 429;
+    }
+
+    private static long acknowledged(HttpResponse resp)
+    {
+        //Range: bytes=0-<last received byte>
+        String range = resp.getHeaders().getRange();
+        return range == null ? 0 : Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+    }
+
+    /**
+     * Resets the digest to the content already uploaded.
+     */
+    private void digest(long offset) throws IOException
+    {
+        md5.reset();
+        byte[] buf = new byte[1 << 16];
+        try(InputStream in = Files.newInputStream(local))
+        {
+            for(long left = offset; left > 0; )
+            {
+                int r = in.read(buf, 0, (int)Math.min(buf.length, left));
+                if(r < 0) throw new IOException("'" + local + "' was truncated during its upload");
+                md5.update(buf, 0, r);
+                left -= r;
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.sb.jgdrive.IndexFile.Buf;
+
+/**
+ * The size, modification time and file key of the local files along with the md5 of their content at that stat,
+ * so that a file is only hashed again once its stat changes.
+ * <pre>
+ * header : magic "JGDS" (int), version (short), entry count (int)
+ * entry  : relative path (string), size (varlong), modified time (long), file key (string),
+ *          md5 flag (byte) followed, when set, by the md5 (16 bytes)
+ * </pre>
+ * Entries of files not seen by the last scan are dropped when it is written.
+ */
+final class StatCache
+{
+    private static final Logger log = Logger.getLogger(StatCache.class.getPackage().getName());
+    private static final int MAGIC = 0x4A474453; // JGDS
+    private static final short VERSION = 1;
+    /**
+     * A file modified this close to its stat being taken may be modified again within the same mtime tick,
+     * such a stat is not trusted (as in git's racy clean check).
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    private final Path home;
+    private final ConcurrentHashMap<String, Stat> stats = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+    private volatile boolean scanned;
+
+    private StatCache(Path home)
+    {
+        this.home = home;
+    }
+
+    private static class Stat
+    {
+        final long size;
+        final long modified;
+        final String fileKey;
+        final byte[] md5;
+        volatile boolean seen;
+
+        Stat(long size, long modified, String fileKey, byte[] md5)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.md5 = md5;
+        }
+
+        Stat(BasicFileAttributes attrs, byte[] md5)
+        {
+            this(attrs.size(), modified(attrs), fileKey(attrs), md5);
+        }
+
+        boolean matches(BasicFileAttributes attrs)
+        {
+            return size == attrs.size() && modified == attrs.lastModifiedTime().toMillis()
+                        && Objects.equals(fileKey, fileKey(attrs));
+        }
+
+        private static long modified(BasicFileAttributes attrs)
+        {
+            long mtime = attrs.lastModifiedTime().toMillis();
+            return System.currentTimeMillis() - mtime < RACY_MILLIS ? -1 : mtime;
+        }
+
+        private static String fileKey(BasicFileAttributes attrs)
+        {
+            return attrs.fileKey() != null ? attrs.fileKey().toString() : null;
+        }
+    }
+
+    static StatCache read(Path home, Path path)
+    {
+        StatCache sc = new StatCache(home);
+        if(Files.notExists(path)) return sc;
+        long start = System.currentTimeMillis();
+        try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if(bb.getInt() != MAGIC || bb.getShort() != VERSION)
+            {
+                log.warning("Ignoring unrecognized stat cache " + path);
+                return sc;
+            }
+            for(int count = bb.getInt(); count > 0; count--)
+            {
+                String rel = IndexFile.readString(bb);
+                long size = IndexFile.readVarLong(bb);
+                long modified = bb.getLong();
+                String fileKey = IndexFile.readString(bb);
+                byte[] md5 = null;
+                if(bb.get() != 0) bb.get(md5 = new byte[16]);
+                sc.stats.put(rel, new Stat(size, modified, fileKey.isEmpty() ? null : fileKey, md5));
+            }
+        }
+        catch(IOException | RuntimeException e)
+        {
+            log.warning("Ignoring unreadable stat cache " + path + ": " + e);
+            sc.stats.clear();
+        }
+        log.fine(() -> "Read " + sc.stats.size() + " stats from " + path + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+        return sc;
+    }
+
+    synchronized void write(Path path) throws IOException
+    {
+        if(scanned) dirty |= stats.values().removeIf(st -> !st.seen);
+        if(!dirty) return;
+        Buf buf = new Buf(1 << 16);
+        buf.putInt(MAGIC);
+        buf.putShort(VERSION);
+        buf.putInt(stats.size());
+        stats.forEach((rel, st) ->
+            {
+                buf.putString(rel);
+                buf.putVarLong(st.size);
+                buf.putLong(st.modified);
+                buf.putString(st.fileKey != null ? st.fileKey : "");
+                buf.putByte((byte)(st.md5 != null ? 1 : 0));
+                if(st.md5 != null) buf.put(st.md5, 0, st.md5.length);
+            });
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try
+        {
+            try(FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE))
+            {
+                ByteBuffer bb = ByteBuffer.wrap(buf.bytes(), 0, buf.size());
+                while(bb.hasRemaining()) fc.write(bb);
+            }
+            IndexFile.move(tmp, path);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Starts a full scan of the working directory, entries not {@link #seen(Path) seen} by it are dropped on write.
+     */
+    void beginScan()
+    {
+        stats.values().forEach(st -> st.seen = false);
+        scanned = true;
+    }
+
+    void seen(Path rel)
+    {
+        Stat st = stats.get(rel.toString());
+        if(st != null) st.seen = true;
+    }
+
+    /**
+     * @return true if the file has the recorded stat or, if only its stat changed, the recorded content
+     */
+    boolean isUnchanged(Path rel, BasicFileAttributes attrs) throws IOException
+    {
+        Stat st = stats.get(rel.toString());
+        if(st == null) return false;
+        if(st.matches(attrs)) return true;
+        if(st.md5 == null || !Arrays.equals(st.md5, hash(home.resolve(rel)))) return false;
+        put(rel, new Stat(attrs, st.md5));
+        return true;
+    }
+
+    boolean contains(Path rel)
+    {
+        return stats.containsKey(rel.toString());
+    }
+
+    /**
+     * @return the md5 of the content of the file, only read when its stat differs from the recorded one
+     */
+    byte[] md5(Path rel) throws IOException
+    {
+        return md5(rel, Files.readAttributes(home.resolve(rel), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+    }
+
+    byte[] md5(Path rel, BasicFileAttributes attrs) throws IOException
+    {
+        Stat st = stats.get(rel.toString());
+        if(st != null && st.md5 != null && st.matches(attrs)) return st.md5;
+        byte[] md5 = hash(home.resolve(rel));
+        put(rel, new Stat(attrs, md5));
+        return md5;
+    }
+
+    String md5Hex(Path rel) throws IOException
+    {
+        return DatatypeConverter.printHexBinary(md5(rel)).toLowerCase();
+    }
+
+    /**
+     * Records a file whose content is known to be unchanged, without its md5.
+     */
+    void record(Path rel, BasicFileAttributes attrs)
+    {
+        put(rel, new Stat(attrs, null));
+    }
+
+    /**
+     * Records the stat of a file that was just synced with the given content.
+     * @param attrs the stat taken before the content was transferred, null to stat the file now
+     */
+    void synced(Path rel, BasicFileAttributes attrs, String md5Hex) throws IOException
+    {
+        if(attrs == null) attrs = stat(rel);
+        if(attrs == null || !attrs.isRegularFile()) return;
+        byte[] md5 = md5Hex != null && md5Hex.length() == 32 ? DatatypeConverter.parseHexBinary(md5Hex) : null;
+        put(rel, new Stat(attrs, md5));
+    }
+
+    /**
+     * @return the stat of the file, null if it does not exist
+     */
+    BasicFileAttributes stat(Path rel) throws IOException
+    {
+        try
+        {
+            return Files.readAttributes(home.resolve(rel), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch(NoSuchFileException e)
+        {
+            return null;
+        }
+    }
+
+    void remove(Path rel)
+    {
+        if(stats.remove(rel.toString()) != null) dirty = true;
+    }
+
+    private void put(Path rel, Stat st)
+    {
+        st.seen = true;
+        Stat old = stats.put(rel.toString(), st);
+        if(old == null || old.size != st.size || old.modified != st.modified
+                || !Objects.equals(old.fileKey, st.fileKey) || !Arrays.equals(old.md5, st.md5))
+            dirty = true;
+    }
+
+    static byte[] hash(Path path) throws IOException
+    {
+        try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            ByteBuffer bb = ByteBuffer.allocate(1 << 16);
+            while(fc.read(bb) != -1)
+            {
+                bb.flip();
+                md5.update(bb);
+                bb.clear();
+            }
+            return md5.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Failed to generate MD5 hash of " + path, e);
+        }
+    }
+}
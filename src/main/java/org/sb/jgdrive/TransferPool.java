@@ -0,0 +1,79 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Dedicated workers for blocking transfers, so they neither run on nor starve the common fork/join pool.
+ * Every {@link #run(Stream, Try.ConsumerEx)} keeps up to twice as many tasks queued as there are workers,
+ * the calling thread blocks while the queue is full.
+ */
+final class TransferPool
+{
+    private static final Logger log = Logger.getLogger(TransferPool.class.getPackage().getName());
+    private final ThreadPoolExecutor executor;
+    private final int capacity;
+
+    TransferPool(String name, int threads)
+    {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r ->
+            {
+                Thread t = new Thread(r, "jgdrive-" + name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        capacity = threads * 2;
+        log.fine(() -> "Using " + threads + " " + name + " threads");
+    }
+
+    /**
+     * Runs the task for every item on the workers and returns once all of them are done.
+     * No further items are taken after a task failed, the first failure is rethrown.
+     */
+    <T> void run(Stream<T> items, Try.ConsumerEx<? super T> task) throws IOException
+    {
+        Semaphore slots = new Semaphore(capacity);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        try
+        {
+            for(Iterator<T> it = items.iterator(); failure.get() == null && it.hasNext();)
+            {
+                T item = it.next();
+                slots.acquireUninterruptibly();
+                executor.execute(() ->
+                    {
+                        try
+                        {
+                            if(failure.get() == null) task.accept(item);
+                        }
+                        catch(Exception e)
+                        {
+                            failure.compareAndSet(null, e);
+                        }
+                        finally
+                        {
+                            slots.release();
+                        }
+                    });
+            }
+        }
+        finally
+        {
+            slots.acquireUninterruptibly(capacity);
+        }
+        Exception e = failure.get();
+        if(e instanceof IOException) throw (IOException)e;
+        if(e instanceof RuntimeException) throw (RuntimeException)e;
+        if(e != null) throw new IOException(e);
+    }
+}
@@ -0,0 +1,210 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiPredicate;
+import java.util.logging.Logger;
+
+import org.sb.jgdrive.RemoteIndex.FileMeta;
+
+/**
+ * Walks the home and the {@link RemoteIndex} together, every folder along with its nodes in the index, so that the
+ * changed files and the deleted paths are found in a single pass. The sorted names listed in a folder are merged with
+ * the sorted titles of the children of its nodes: a name without a title is new, a title without a name is deleted
+ * along with everything below it. The folders are listed on a fork/join pool, a task per folder, links are not followed.
+ * All paths handed out are relative to the home.
+ */
+final class TreeDiff
+{
+    private static final Logger log = Logger.getLogger(TreeDiff.class.getPackage().getName());
+    private static final int NONE = CompactTree.NONE;
+    private static final int[] NO_NODES = new int[0];
+
+    interface Check
+    {
+        /**
+         * @param indexed if the path is in the index
+         * @param synced the meta-data the index has for it
+         * @return true if the file is new or modified, called on the threads of the pool
+         */
+        boolean changed(Path rel, BasicFileAttributes attrs, boolean indexed, Optional<FileMeta> synced);
+    }
+
+    private final Path home;
+    private final RemoteIndex idx;
+    private final CompactTree tree;
+    private final int threads;
+    private final BiPredicate<Path, BasicFileAttributes> prune;
+    private final Check check;
+    private final Set<Path> changed = ConcurrentHashMap.newKeySet();
+    private final Map<Path, String> deleted = new ConcurrentHashMap<>();
+
+    /**
+     * @param prune the folders not to descend into, what the index has below them is only checked for existence
+     */
+    TreeDiff(Path home, RemoteIndex idx, int threads, BiPredicate<Path, BasicFileAttributes> prune, Check check)
+    {
+        this.home = home;
+        this.idx = idx;
+        this.tree = idx.tree();
+        this.threads = Math.max(1, threads);
+        this.prune = prune;
+        this.check = check;
+    }
+
+    TreeDiff run()
+    {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.currentTimeMillis();
+        try
+        {
+            pool.invoke(new Dir(Paths.get(""), tree.root() == NONE ? NO_NODES : new int[]{tree.root()}));
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        log.fine(() -> "Compared " + home + " with the index using " + threads + " threads in "
+                            + (System.currentTimeMillis() - start) + " ms, " + changed.size() + " changed, "
+                            + deleted.size() + " deleted");
+        return this;
+    }
+
+    /**
+     * @return the new and modified files
+     */
+    Set<Path> changed()
+    {
+        return changed;
+    }
+
+    /**
+     * @return the ids of the paths in the index that are gone
+     */
+    Map<Path, String> deleted()
+    {
+        return deleted;
+    }
+
+    private void gone(int node, Path rel)
+    {
+        idx.localPaths(node, rel).forEach(e -> deleted.put(e.getKey(), e.getValue()));
+    }
+
+    private class Dir extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final Path rel;
+        //titles can repeat in a folder, all of the nodes with the name of the folder are compared with it
+        private final int[] nodes;
+
+        Dir(Path rel, int[] nodes)
+        {
+            this.rel = rel;
+            this.nodes = nodes;
+        }
+
+        @Override
+        protected void compute()
+        {
+            List<String> names = new ArrayList<>();
+            try(DirectoryStream<Path> ds = Files.newDirectoryStream(home.resolve(rel)))
+            {
+                for(Path p : ds)
+                    names.add(p.getFileName().toString());
+            }
+            catch(NoSuchFileException e)
+            {
+                if(rel.toString().isEmpty()) throw new IORtException(e);
+                //deleted since it was listed
+                for(int n : nodes) gone(n, rel);
+                return;
+            }
+            catch(IOException e)
+            {
+                throw new IORtException(e);
+            }
+            names.sort(null);
+            List<Entry<String, Integer>> children = new ArrayList<>();
+            for(int n : nodes)
+                for(int ch = tree.firstChild(n); ch != NONE; ch = tree.nextSibling(ch))
+                    children.add(new SimpleImmutableEntry<>(tree.title(ch), ch));
+            children.sort(Entry.comparingByKey());
+
+            List<Dir> subdirs = new ArrayList<>();
+            int i = 0, j = 0;
+            while(i < names.size() || j < children.size())
+            {
+                int cmp = i == names.size() ? 1 : j == children.size() ? -1
+                                : names.get(i).compareTo(children.get(j).getKey());
+                if(cmp > 0)
+                {
+                    gone(children.get(j).getValue(), rel.resolve(children.get(j).getKey()));
+                    j++;
+                    continue;
+                }
+                int from = j;
+                while(cmp == 0 && j < children.size() && children.get(j).getKey().equals(names.get(i))) j++;
+                int[] matched = from == j ? NO_NODES
+                                          : children.subList(from, j).stream().mapToInt(e -> e.getValue()).toArray();
+                visit(rel.resolve(names.get(i++)), matched, subdirs);
+            }
+            invokeAll(subdirs);
+        }
+
+        private void visit(Path child, int[] matched, List<Dir> subdirs)
+        {
+            BasicFileAttributes a;
+            try
+            {
+                a = Files.readAttributes(home.resolve(child), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+            catch(NoSuchFileException e)
+            {
+                //deleted since it was listed
+                for(int n : matched) gone(n, child);
+                return;
+            }
+            catch(IOException e)
+            {
+                throw new IORtException(e);
+            }
+            if(a.isDirectory())
+            {
+                if(!prune.test(child, a))
+                    subdirs.add(new Dir(child, matched));
+                else
+                    for(int n : matched)
+                        idx.localPaths(n, child)
+                            .filter(e -> Files.notExists(home.resolve(e.getKey()), LinkOption.NOFOLLOW_LINKS))
+                            .forEach(e -> deleted.put(e.getKey(), e.getValue()));
+                return;
+            }
+            //a file in place of a folder, what was in the folder is gone
+            for(int n : matched)
+                for(int ch = tree.firstChild(n); ch != NONE; ch = tree.nextSibling(ch))
+                    gone(ch, child.resolve(tree.title(ch)));
+            if(a.isRegularFile()
+                    && check.changed(child, a, matched.length > 0,
+                                        matched.length > 0 ? idx.getMeta(matched[0]) : Optional.empty()))
+                changed.add(child);
+        }
+    }
+}
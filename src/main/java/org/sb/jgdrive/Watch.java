@@ -0,0 +1,185 @@
+package org.sb.jgdrive;
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs until it is stopped, keeping the local paths changed since the last push in {@link WatchState}, so that
+ * status, pull and push look at those paths only instead of walking the home and the index.
+ * Every folder of the home that is not ignored is watched, a folder created later is watched along with the files
+ * already in it. The first scan after the watch starts, or after events were lost, is a full one.
+ */
+public class Watch implements Cmd
+{
+    private static final Logger log = Logger.getLogger(Watch.class.getPackage().getName());
+    private static final long FLUSH_MILLIS = 500;
+
+    private Path home, jgdrive;
+    private IgnoreRules ignores;
+    private WatchService ws;
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+    private final Map<Path, Long> dirty = new LinkedHashMap<>();
+    private long seq, rescan, ack;
+    private boolean changed;
+
+    @Override
+    public void exec(Driver driver, List<String> opts) throws IOException, IllegalStateException
+    {
+        home = driver.getHome();
+        jgdrive = driver.stateFile(".").normalize();
+        ignores = driver.getIgnores().get();
+        FileLock lock = WatchState.lock(jgdrive);
+        if(lock == null) throw new IllegalStateException("Already watching " + home);
+        try(WatchService ws = home.getFileSystem().newWatchService())
+        {
+            this.ws = ws;
+            //numbered after all that a previous watch may have handed out
+            ack = WatchState.readAck(jgdrive);
+            seq = Math.max(ack, WatchState.read(jgdrive).map(w -> w.seq).orElse(0L));
+            //the changes before now are not known, and those during the registration may be missed
+            rescan = ++seq;
+            changed = true;
+            register(home, false);
+            log.info("Watching " + dirs.size() + " folders of " + home);
+            long ackModified = 0, flushed = 0;
+            while(true)
+            {
+                WatchKey key = ws.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if(key != null) handle(key);
+                long now = System.currentTimeMillis();
+                //written when things calm down, or every so often while they do not
+                if(key != null && now - flushed < FLUSH_MILLIS) continue;
+                flushed = now;
+                Path ackPath = jgdrive.resolve(WatchState.ACK);
+                long modified = Files.exists(ackPath) ? Files.getLastModifiedTime(ackPath).toMillis() : 0;
+                if(modified != ackModified)
+                {
+                    ackModified = modified;
+                    synced(WatchState.readAck(jgdrive));
+                }
+                if(changed)
+                {
+                    WatchState.write(jgdrive, dirty, rescan);
+                    changed = false;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            log.info("Stopped watching " + home);
+        }
+        finally
+        {
+            lock.channel().close();
+        }
+    }
+
+    private void handle(WatchKey key) throws IOException
+    {
+        Path dir = dirs.get(key);
+        for(WatchEvent<?> event : key.pollEvents())
+        {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+            {
+                log.warning("Lost track of the changes in " + home + ", the next scan is a full one");
+                rescan = ++seq;
+                changed = true;
+                continue;
+            }
+            Path path = dir.resolve((Path)event.context());
+            if(path.startsWith(jgdrive)) continue;
+            boolean isDir = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+            if(ignores.ignores(home.relativize(path), isDir)) continue;
+            dirty(path);
+            if(isDir && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) register(path, true);
+        }
+        if(!key.reset()) dirs.remove(key);
+    }
+
+    /**
+     * Watches the folder and the ones below it.
+     * @param created if the files found are new, as they were not watched before
+     */
+    private void register(Path start, boolean created) throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                if(dir.equals(jgdrive) || !dir.equals(home) && ignores.prunes(home.relativize(dir)))
+                    return FileVisitResult.SKIP_SUBTREE;
+                dirs.put(dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                                        StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if(created && !ignores.ignoresFile(home.relativize(file))) dirty(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                //gone before it could be looked at, its deletion is reported too
+                log.fine(() -> "Could not visit " + file + ": " + e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void dirty(Path path)
+    {
+        String rel = home.relativize(path).toString();
+        if(rel.indexOf('\n') >= 0 || rel.indexOf('\r') >= 0)
+            //cannot be written as a line of the state
+            rescan = ++seq;
+        else
+        {
+            Path key = home.relativize(path);
+            //moved to the end, the paths stay ordered by their last change
+            dirty.remove(key);
+            dirty.put(key, ++seq);
+        }
+        changed = true;
+    }
+
+    /**
+     * Drops the changes that a push has taken in.
+     */
+    private void synced(long acked)
+    {
+        if(acked <= ack) return;
+        ack = acked;
+        dirty.values().removeIf(s -> s <= acked);
+        if(rescan <= acked) rescan = 0;
+        changed = true;
+        log.fine(() -> "Synced up to " + acked + ", " + dirty.size() + " paths left");
+    }
+
+    public List<String> help(String name)
+    {
+        return Collections.singletonList(name + "\t keeps track of the local changes until stopped");
+    }
+}
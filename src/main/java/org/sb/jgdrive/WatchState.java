@@ -0,0 +1,136 @@
+package org.sb.jgdrive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The local paths changed since the last push, as kept by {@link Watch} in .jgdrive/dirty.txt. Every path carries the
+ * sequence number of its last event, a push acknowledges the highest number it has seen in .jgdrive/watch.ack and
+ * the watch drops the paths up to it. A full rescan is asked for when the watch starts and when events were lost,
+ * until it is acknowledged in the same way. The state is only trusted while the watch holds .jgdrive/watch.lock.
+ */
+final class WatchState
+{
+    private static final Logger log = Logger.getLogger(WatchState.class.getPackage().getName());
+    static final String DIRTY = "dirty.txt";
+    static final String ACK = "watch.ack";
+    static final String LOCK = "watch.lock";
+
+    final long seq;
+    final boolean rescan;
+    final Set<Path> paths;
+
+    private WatchState(long seq, boolean rescan, Set<Path> paths)
+    {
+        this.seq = seq;
+        this.rescan = rescan;
+        this.paths = paths;
+    }
+
+    /**
+     * @return the paths changed since the last acknowledgement, none if no watch is running
+     */
+    static Optional<WatchState> read(Path jgdrive) throws IOException
+    {
+        Path dirty = jgdrive.resolve(DIRTY);
+        if(!isWatched(jgdrive) || Files.notExists(dirty)) return Optional.empty();
+        long ack = readAck(jgdrive);
+        Set<Path> paths = new HashSet<>();
+        long seq = ack, rescan = 0;
+        try(BufferedReader br = Files.newBufferedReader(dirty, StandardCharsets.UTF_8))
+        {
+            for(String line; (line = br.readLine()) != null;)
+            {
+                int tab = line.indexOf('\t');
+                if(line.startsWith("#rescan\t")) rescan = Long.parseLong(line.substring(tab + 1));
+                else if(tab > 0)
+                {
+                    long s = Long.parseLong(line.substring(0, tab));
+                    if(s > ack) paths.add(Paths.get(line.substring(tab + 1)));
+                    seq = Math.max(seq, s);
+                }
+            }
+        }
+        boolean full = rescan > ack;
+        int count = paths.size();
+        log.fine(() -> "Watched changes: " + count + " paths" + (full ? ", a full scan is due" : ""));
+        return Optional.of(new WatchState(Math.max(seq, rescan), full, Collections.unmodifiableSet(paths)));
+    }
+
+    /**
+     * Writes the paths with their sequence numbers, in place of the previous ones.
+     */
+    static void write(Path jgdrive, Map<Path, Long> dirty, long rescan) throws IOException
+    {
+        Path path = jgdrive.resolve(DIRTY);
+        Path tmp = path.resolveSibling(DIRTY + ".tmp");
+        try(BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))
+        {
+            if(rescan > 0) bw.write("#rescan\t" + rescan + "\n");
+            for(Entry<Path, Long> e : dirty.entrySet())
+                bw.write(e.getValue() + "\t" + e.getKey() + "\n");
+        }
+        IndexFile.move(tmp, path);
+    }
+
+    static void ack(Path jgdrive, long seq) throws IOException
+    {
+        Path path = jgdrive.resolve(ACK);
+        Path tmp = path.resolveSibling(ACK + ".tmp");
+        Files.write(tmp, String.valueOf(seq).getBytes(StandardCharsets.UTF_8));
+        IndexFile.move(tmp, path);
+    }
+
+    static long readAck(Path jgdrive) throws IOException
+    {
+        Path path = jgdrive.resolve(ACK);
+        if(Files.notExists(path)) return 0;
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        return lines.isEmpty() ? 0 : Long.parseLong(lines.get(0).trim());
+    }
+
+    /**
+     * @return the lock that marks the watch as running, null if another watch holds it
+     */
+    static FileLock lock(Path jgdrive) throws IOException
+    {
+        FileChannel fc = FileChannel.open(jgdrive.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try
+        {
+            FileLock lock = fc.tryLock();
+            if(lock == null) fc.close();
+            return lock;
+        }
+        catch(OverlappingFileLockException e)
+        {
+            fc.close();
+            return null;
+        }
+    }
+
+    private static boolean isWatched(Path jgdrive) throws IOException
+    {
+        if(Files.notExists(jgdrive.resolve(LOCK))) return false;
+        FileLock lock = lock(jgdrive);
+        if(lock == null) return true;
+        lock.channel().close();
+        return false;
+    }
+}